@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
 import java.util.Iterator;
-import java.util.SortedSet;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +51,7 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new TimingWheel();
     }
 
     /**
@@ -120,17 +118,45 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Advance the simulated time over the kernel ticks in which no interrupt
+     * can become due. The effect on the simulated time is the same as
+     * enabling and disabling interrupts that many times, stopping one kernel
+     * tick short of the tick on which the next interrupt is due. That tick,
+     * and the handlers that then run, are left to the caller, which must
+     * enable interrupts next.
+     *
+     * <p>
+     * Intended for the idle thread, which otherwise spends each of these
+     * ticks yielding to itself. Does nothing if nothing is pending, or if
+     * interrupts are being traced.
+     */
+    public void skipIdleTicks() {
+	Lib.assertTrue(disabled());
+
+	long ticks = ticksUntilDue();
+	if (ticks <= Stats.KernelTick || ticks == Long.MAX_VALUE)
+	    return;
+
+	long skipped = (ticks-1) / Stats.KernelTick * Stats.KernelTick;
+
+	Stats stats = privilege.stats;
+	stats.kernelTicks += skipped;
+	stats.totalTicks += skipped;
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+	if (traceInt)
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	pending.add(time, type, handler);
 
-	pending.add(toOccur);
+	if (time < nextDue)
+	    nextDue = time;
     }
 
     private void tick(boolean inKernelMode) {
@@ -145,45 +171,70 @@ public final class Interrupt {
 	    stats.totalTicks += Stats.UserTick;
 	}
 
-	if (Lib.test(dbgInt))
+	if (traceInt)
 	    System.out.println("== Tick " + stats.totalTicks + " ==");
 
+	// nothing can be due yet, and there is no pending list to print
+	if (stats.totalTicks < nextDue && !traceInt)
+	    return;
+
 	enabled = false;
 	checkIfDue();
 	enabled = true;
     }
 
+    private long ticksUntilDue() {
+	// when tracing, every tick has to go through tick()
+	if (traceInt)
+	    return 1;
+	
+	if (nextDue == Long.MAX_VALUE)
+	    return Long.MAX_VALUE;
+
+	return nextDue - privilege.stats.totalTicks;
+    }
+
+    private void advanceUser(int count) {
+	Stats stats = privilege.stats;
+
+	stats.userTicks += count * Stats.UserTick;
+	stats.totalTicks += count * Stats.UserTick;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
 	Lib.assertTrue(disabled());
 
-	if (Lib.test(dbgInt))
+	if (traceInt)
 	    print();
 
 	if (pending.isEmpty())
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (nextDue > time)
 	    return;
 
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+	if (traceInt)
+	    System.out.println("Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
-
-	    Lib.assertTrue(next.time <= time);
+	while (pending.firstTime() <= time) {
+	    TimingWheel.Entry next = pending.removeFirst();
+	    String type = next.type;
+	    Runnable handler = next.handler;
+	    pending.free(next);
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (traceInt)
+		System.out.println("  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
+	nextDue = pending.firstTime();
+
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
@@ -192,8 +243,8 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	for (Iterator i=pending.entries().iterator(); i.hasNext(); ) {
+	    TimingWheel.Entry toOccur = (TimingWheel.Entry) i.next();
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,46 +252,22 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
-	}
-
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
-
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
-	}
-
-	long time;
-	String type;
-	Runnable handler;
-
-	private long id;
-    }
-    
-    private long numPendingInterruptsCreated = 0;
-
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private TimingWheel pending;
+    /**
+     * The time of the earliest pending interrupt, or <tt>Long.MAX_VALUE</tt>
+     * if there is none. Ticks before this time need not look at
+     * <tt>pending</tt>.
+     */
+    private long nextDue = Long.MAX_VALUE;
 
     private static final char dbgInt = 'i';
 
+    /** Whether the <tt>i</tt> debug flag was given on the command line. */
+    private final boolean traceInt = Lib.test(dbgInt);
+
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
 	public void schedule(long when, String type, Runnable handler) {
 	    Interrupt.this.schedule(when, type, handler);
@@ -249,5 +276,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long ticksUntilDue() {
+	    return Interrupt.this.ticksUntilDue();
+	}
+
+	public void advanceUser(int count) {
+	    Interrupt.this.advanceUser(count);
+	}
     }
 }
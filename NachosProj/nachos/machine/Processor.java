@@ -4,6 +4,15 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -39,18 +48,63 @@ public final class Processor {
 
 	usingTLB =
 	    (clsVMKernel != null && clsVMKernel.isAssignableFrom(clsKernel));
+
+	String engineName = Config.getString("Processor.engine", "interpreter");
+	if (engineName.equals("interpreter"))
+	    engine = engineInterpreter;
+	else if (engineName.equals("blocks"))
+	    engine = engineBlocks;
+	else if (engineName.equals("compiled"))
+	    engine = engineCompiled;
+	else
+	    Lib.assertNotReached("unknown Processor.engine: " + engineName);
+
+	compileThreshold = Config.getInteger("Processor.compileThreshold",
+					     compileThreshold);
 	
 	this.numPhysPages = numPhysPages;
 
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	Lib.assertTrue(numPhysPages > 0 &&
+		       numPhysPages <= Integer.MAX_VALUE / pageSize,
+		       "bad number of physical pages");
+	
+	String memoryType = Config.getString("Processor.memory", "heap");
+	if (memoryType.equals("heap"))
+	    mainMemory = ByteBuffer.allocate(pageSize * numPhysPages);
+	else if (memoryType.equals("direct"))
+	    mainMemory = ByteBuffer.allocateDirect(pageSize * numPhysPages);
+	else if (memoryType.equals("mapped"))
+	    mainMemory = mapMemory(Config.getString("Processor.memoryFile"),
+				   pageSize * numPhysPages);
+	else
+	    Lib.assertNotReached("unknown Processor.memory: " + memoryType);
+
+	mainMemory.order(ByteOrder.LITTLE_ENDIAN);
+	decodedPages = new Decoded[numPhysPages][];
+	blockPages = new Block[numPhysPages][];
+
+	exceptions = new MipsException[exceptionNames.length];
+	for (int i=0; i<exceptions.length; i++)
+	    exceptions[i] = new MipsException(i);
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+	    tlbAssociativity = Config.getInteger("Processor.tlbAssociativity",
+						 tlbSize);
+	    Lib.assertTrue(tlbSize > 0 && tlbAssociativity > 0 &&
+			   tlbSize % tlbAssociativity == 0,
+			   "bad TLB size or associativity");
+	    numTLBSets = tlbSize / tlbAssociativity;
+	    
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    privilege.stats.tlbSetHits = new long[numTLBSets];
+	    privilege.stats.tlbSetMisses = new long[numTLBSets];
 	}
 	else {
 	    translations = null;
@@ -83,6 +137,21 @@ public final class Processor {
     
     /**
      * Start executing instructions at the current PC. Never returns.
+     *
+     * <p>
+     * The <tt>nachos.conf</tt> key <tt>Processor.engine</tt> selects how
+     * instructions are executed. The default, <tt>interpreter</tt>, fetches,
+     * decodes and executes one instruction at a time. <tt>blocks</tt> executes
+     * whole basic blocks between calls into the interrupt controller, with
+     * identical results. <tt>compiled</tt> also executes basic blocks, and
+     * in addition translates each block that has run more than
+     * <tt>Processor.compileThreshold</tt> times into specialized handlers.
+     *
+     * <p>
+     * Tracing is chosen once, when the processor is created. If any of the
+     * <tt>p</tt>, <tt>m</tt> or <tt>M</tt> debug flags are set, the
+     * instrumented interpreter is used regardless of the engine; otherwise
+     * the engine runs without printing anything per instruction.
      */
     public void run() {
 	Lib.debug(dbgProcessor, "starting program in current thread");
@@ -92,7 +161,24 @@ public final class Processor {
 	Machine.autoGrader().runProcessor(privilege);
 
 	Instruction inst = new Instruction();
-	
+
+	flushLastTranslations();
+
+	if (tracing)
+	    runTraced(inst);
+	else if (engine != engineInterpreter)
+	    runBlocks(inst);
+	else
+	    runInterpreter(inst);
+    }
+
+    /**
+     * Execute instructions one at a time, printing a trace as selected by
+     * the debug flags. Never returns.
+     *
+     * @param	inst	the instruction state to execute with.
+     */
+    private void runTraced(Instruction inst) {
 	while (true) {
 	    try {
 		inst.run();
@@ -105,6 +191,123 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Execute instructions one at a time, without tracing. Never returns.
+     *
+     * <p>
+     * Only the tick of the instruction that makes the next interrupt due, or
+     * that causes an exception, goes through the interrupt controller. The
+     * ticks of the instructions before it are accounted for in bulk.
+     *
+     * @param	inst	the instruction state to execute with.
+     */
+    private void runInterpreter(Instruction inst) {
+	while (true) {
+	    // run up to the instruction whose tick makes an interrupt due
+	    long ticks = privilege.interrupt.ticksUntilDue();
+	    int count = 1;
+	    if (ticks > Stats.UserTick)
+		count = (int) Math.min(Integer.MAX_VALUE,
+				       (ticks - 1) / Stats.UserTick + 1);
+	    int executed = 0;
+	    
+	    try {
+		while (executed < count) {
+		    inst.step(fetchDecoded(registers[regPC]));
+		    executed++;
+		}
+	    }
+	    catch (MipsException e) {
+		privilege.interrupt.advanceUser(executed);
+		e.handle();
+		privilege.interrupt.tick(false);
+		continue;
+	    }
+
+	    privilege.interrupt.advanceUser(executed-1);
+	    privilege.interrupt.tick(false);
+	}
+    }
+
+    /**
+     * Execute instructions a basic block at a time. Never returns.
+     *
+     * <p>
+     * A block is only run as far as the next pending interrupt, so that time
+     * advances and interrupts occur exactly as they would if each instruction
+     * were followed by a tick. The instructions before the last one in each
+     * run are accounted for in bulk.
+     *
+     * @param	inst	the instruction state to execute with.
+     */
+    private void runBlocks(Instruction inst) {
+	while (true) {
+	    int executed = 0;
+	    int fetchVPN = pageFromAddress(registers[regPC]);
+	    boolean fetched = false;
+	    
+	    try {
+		Block block = fetchBlock(registers[regPC]);
+		Block[] page = blockPages[block.ppn];
+		fetched = true;
+
+		if (block.ops == null && engine == engineCompiled &&
+		    ++block.executions > compileThreshold)
+		    block.compile();
+
+		// if we are in a delay slot, the block ends here
+		int count = block.insts.length;
+		if (registers[regNextPC] != registers[regPC]+4)
+		    count = 1;
+
+		// stop at the instruction whose tick makes an interrupt due
+		long ticks = privilege.interrupt.ticksUntilDue();
+		if (ticks < (long) count * Stats.UserTick)
+		    count = (int) Math.max(1, (ticks + Stats.UserTick - 1) /
+					   Stats.UserTick);
+
+		Op[] ops = block.ops;
+		
+		while (executed < count) {
+		    if (ops != null)
+			ops[executed].run();
+		    else
+			inst.step(block.insts[executed]);
+		    executed++;
+
+		    // stop if the block just modified its own page
+		    if (blockPages[block.ppn] != page)
+			break;
+		}
+	    }
+	    catch (MipsException e) {
+		if (fetched)
+		    countFetchHits(fetchVPN, executed);
+		privilege.interrupt.advanceUser(executed);
+		e.handle();
+		privilege.interrupt.tick(false);
+		continue;
+	    }
+
+	    countFetchHits(fetchVPN, executed-1);
+	    privilege.interrupt.advanceUser(executed-1);
+	    privilege.interrupt.tick(false);
+	}
+    }
+
+    /**
+     * Account for instruction fetches that the block engine did not need to
+     * translate, so that TLB statistics match the interpreter. Such fetches
+     * always hit, since they are on the page of the block's first fetch.
+     *
+     * @param	vpn	the virtual page the block was fetched from.
+     * @param	count	the number of fetches skipped.
+     */
+    private void countFetchHits(int vpn, int count) {
+	if (usingTLB)
+	    privilege.stats.tlbSetHits[vpn % numTLBSets] += count;
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -175,6 +378,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	flushLastTranslations();
     }
 
     /**
@@ -188,6 +392,35 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the number of entries in each set of this processor's TLB. The
+     * TLB is fully associative if this is the same as <tt>getTLBSize()</tt>.
+     * Both are set by the <tt>nachos.conf</tt> keys <tt>Processor.tlbSize</tt>
+     * and <tt>Processor.tlbAssociativity</tt>.
+     *
+     * @return	the associativity of this processor's TLB.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbAssociativity;
+    }
+
+    /**
+     * Return the set of TLB entries that may hold a translation for the
+     * specified virtual page. The entries in set <i>s</i> are numbered
+     * <tt><i>s</i>*getTLBAssociativity()</tt> through
+     * <tt>(<i>s</i>+1)*getTLBAssociativity() - 1</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the TLB set for <i>vpn</i>.
+     */
+    public int getTLBSet(int vpn) {
+	Lib.assertTrue(usingTLB);
+	
+	return vpn % numTLBSets;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,8 +438,10 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * If the TLB is fully associative (the default), the location of an entry
+     * within the TLB does not affect anything. Otherwise, a valid entry must
+     * be written to one of the entries in the set given by
+     * <tt>getTLBSet(entry.vpn)</tt>.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -214,8 +449,12 @@ public final class Processor {
     public void writeTLBEntry(int number, TranslationEntry entry) {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
+	Lib.assertTrue(!entry.valid ||
+		       number / tlbAssociativity == getTLBSet(entry.vpn),
+		       "TLB entry written outside its set");
 
 	translations[number] = new TranslationEntry(entry);
+	flushLastTranslations();
     }
 
     /**
@@ -232,10 +471,198 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * Only available when physical memory is on the Java heap (the default,
+     * <tt>Processor.memory = heap</tt>). Code that should also work with
+     * <tt>direct</tt> or <tt>mapped</tt> memory must use the physical memory
+     * methods below instead.
+     *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
-	return mainMemory;
+	Lib.assertTrue(mainMemory.hasArray(),
+		       "physical memory is not a Java array");
+	
+	return mainMemory.array();
+    }
+
+    /**
+     * Return the size of physical memory in bytes, which is
+     * <tt>pageSize * getNumPhysPages()</tt>.
+     *
+     * @return	the size of physical memory.
+     */
+    public int getMemorySize() {
+	return mainMemory.capacity();
+    }
+
+    /**
+     * Copy bytes from physical memory into an array.
+     *
+     * @param	paddr	the first physical address to read.
+     * @param	data	the array where the data will be stored.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void readPhysicalMemory(int paddr, byte[] data, int offset,
+				   int length) {
+	checkPhysicalRange(paddr, length);
+
+	physicalRange(paddr).get(data, offset, length);
+    }
+
+    /**
+     * Copy bytes from an array into physical memory, discarding any cached
+     * instruction decodings for the pages written.
+     *
+     * @param	paddr	the first physical address to write.
+     * @param	data	the array containing the data to copy.
+     * @param	offset	the first byte to copy from the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void writePhysicalMemory(int paddr, byte[] data, int offset,
+				    int length) {
+	checkPhysicalRange(paddr, length);
+
+	physicalRange(paddr).put(data, offset, length);
+	invalidateRange(paddr, length);
+    }
+
+    /**
+     * Fill a range of physical memory with zeroes, discarding any cached
+     * instruction decodings for the pages written.
+     *
+     * @param	paddr	the first physical address to clear.
+     * @param	length	the number of bytes to clear.
+     */
+    public void zeroPhysicalMemory(int paddr, int length) {
+	checkPhysicalRange(paddr, length);
+
+	ByteBuffer range = physicalRange(paddr);
+	for (int i=0; i<length; i+=pageSize)
+	    range.put(zeroPage, 0, Math.min(pageSize, length-i));
+	
+	invalidateRange(paddr, length);
+    }
+
+    /**
+     * Read bytes from a file directly into physical memory, discarding any
+     * cached instruction decodings for the pages written.
+     *
+     * @param	file		the file to read from.
+     * @param	position	the offset in the file of the first byte.
+     * @param	paddr		the first physical address to write.
+     * @param	length		the number of bytes to read.
+     * @return	the number of bytes read, or -1 on error.
+     */
+    public int loadPhysicalMemory(OpenFile file, int position, int paddr,
+				  int length) {
+	checkPhysicalRange(paddr, length);
+
+	int amount;
+	if (mainMemory.hasArray()) {
+	    amount = file.read(position, mainMemory.array(), paddr, length);
+	}
+	else {
+	    byte[] buf = new byte[length];
+	    amount = file.read(position, buf, 0, length);
+	    if (amount > 0)
+		physicalRange(paddr).put(buf, 0, amount);
+	}
+	
+	invalidateRange(paddr, length);
+	return amount;
+    }
+
+    /**
+     * Write bytes from physical memory directly to a file.
+     *
+     * @param	file		the file to write to.
+     * @param	position	the offset in the file of the first byte.
+     * @param	paddr		the first physical address to read.
+     * @param	length		the number of bytes to write.
+     * @return	the number of bytes written, or -1 on error.
+     */
+    public int storePhysicalMemory(OpenFile file, int position, int paddr,
+				   int length) {
+	checkPhysicalRange(paddr, length);
+
+	if (mainMemory.hasArray())
+	    return file.write(position, mainMemory.array(), paddr, length);
+
+	byte[] buf = new byte[length];
+	physicalRange(paddr).get(buf, 0, length);
+	return file.write(position, buf, 0, length);
+    }
+
+    /**
+     * Return a buffer sharing physical memory, positioned at <i>paddr</i>,
+     * for a bulk transfer.
+     */
+    private ByteBuffer physicalRange(int paddr) {
+	ByteBuffer range = mainMemory.duplicate();
+	range.position(paddr);
+	return range;
+    }
+
+    /**
+     * Map <i>size</i> bytes of the named host file as physical memory,
+     * creating or extending the file as needed.
+     */
+    private ByteBuffer mapMemory(final String fileName, final int size) {
+	Lib.assertTrue(fileName != null,
+		       "Processor.memoryFile is required for mapped memory");
+
+	try {
+	    return (ByteBuffer) privilege.doPrivileged(
+		new PrivilegedExceptionAction<ByteBuffer>() {
+		    public ByteBuffer run() throws IOException {
+			RandomAccessFile file =
+			    new RandomAccessFile(new File(fileName), "rw");
+			try {
+			    return file.getChannel().map(
+				FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+			finally {
+			    file.close();
+			}
+		    }
+		});
+	}
+	catch (PrivilegedActionException e) {
+	    Lib.assertNotReached("could not map " + fileName + ": " +
+				 e.getException());
+	    return null;
+	}
+    }
+
+    private void checkPhysicalRange(int paddr, int length) {
+	Lib.assertTrue(length >= 0 && paddr >= 0 &&
+		       paddr+length <= pageSize*numPhysPages);
+    }
+
+    private void invalidateRange(int paddr, int length) {
+	if (length == 0)
+	    return;
+	
+	for (int ppn=paddr/pageSize; ppn<=(paddr+length-1)/pageSize; ppn++)
+	    invalidatePage(ppn);
+    }
+
+    /**
+     * Discard any cached instruction decodings for the specified physical
+     * page. Must be called whenever the kernel modifies a page of physical
+     * memory directly (that is, through <tt>getMemory()</tt>) that may later
+     * be executed. Writes performed by user instructions, and through the
+     * physical memory methods above, invalidate the cache automatically.
+     *
+     * @param	ppn	the physical page whose contents have changed.
+     */
+    public void invalidatePage(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodedPages[ppn] = null;
+	blockPages[ppn] = null;
     }
 
     /**
@@ -279,6 +706,33 @@ public final class Processor {
 	delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Forget the last instruction and data translations, so that the next
+     * translation of each kind goes to the page table or TLB. Must be called
+     * whenever the kernel may have changed a translation entry.
+     */
+    private void flushLastTranslations() {
+	lastFetch.vpn = -1;
+	lastFetch.entry = null;
+	lastData.vpn = -1;
+	lastData.entry = null;
+    }
+
+    /**
+     * Translate a virtual address for a data reference. Same as
+     * <tt>translate(vaddr, size, writing, lastData)</tt>.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int translate(int vaddr, int size, boolean writing)
+	throws MipsException {
+	return translate(vaddr, size, writing, lastData);
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -286,22 +740,28 @@ public final class Processor {
      * resulting physical page is valid, and then return the resulting physical
      * address.
      *
+     * <p>
+     * If <i>vaddr</i> is on the same page as the last translation recorded in
+     * <i>last</i>, the page table or TLB lookup and the physical page check
+     * are skipped. The used and dirty bits are still set on every reference.
+     *
      * @param	vaddr	the virtual address to translate.
      * @param	size	the size of the memory reference (must be 1, 2, or 4).
      * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	last	the last translation for this kind of reference.
      * @return		the physical address.
      * @exception	MipsException	if a translation error occurred.
      */
-    private int translate(int vaddr, int size, boolean writing)
-	throws MipsException {
-	if (Lib.test(dbgProcessor))
+    private int translate(int vaddr, int size, boolean writing,
+			  LastTranslation last) throws MipsException {
+	if (traceProcessor)
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
 
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
 	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    throw raise(exceptionAddressError, vaddr);
 	}
 
 	// calculate virtual page number and offset from the virtual address
@@ -310,44 +770,62 @@ public final class Processor {
 
 	TranslationEntry entry = null;
 
+	// same page as last time, so the entry is known to be valid
+	if (vpn == last.vpn) {
+	    entry = last.entry;
+	    
+	    if (usingTLB)
+		privilege.stats.tlbSetHits[vpn % numTLBSets]++;
+	}
 	// if not using a TLB, then the vpn is an index into the table
-	if (!usingTLB) {
+	else if (!usingTLB) {
 	    if (translations == null || vpn >= translations.length ||
 		translations[vpn] == null ||
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		throw raise(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look through the TLB entries in vpn's set for matching vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
+	    int set = vpn % numTLBSets;
+	    int first = set * tlbAssociativity;
+	    for (int i=first; i<first+tlbAssociativity; i++) {
 		if (translations[i].valid && translations[i].vpn == vpn) {
 		    entry = translations[i];
 		    break;
 		}
 	    }
-	    if (entry == null) {
+	    if (entry != null) {
+		privilege.stats.tlbSetHits[set]++;
+	    }
+	    else {
+		privilege.stats.tlbSetMisses[set]++;
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+		throw raise(exceptionTLBMiss, vaddr);
 	    }
 	}
 
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
 	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	    throw raise(exceptionReadOnly, vaddr);
 	}
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
-	if (ppn < 0 || ppn >= numPhysPages) {
-	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+	if (entry != last.entry) {
+	    if (ppn < 0 || ppn >= numPhysPages) {
+		Lib.debug(dbgProcessor, "\t\tbad ppn");
+		throw raise(exceptionBusError, vaddr);
+	    }
+
+	    last.vpn = vpn;
+	    last.entry = entry;
 	}
 
 	// set used and dirty bits as appropriate
@@ -357,7 +835,7 @@ public final class Processor {
 
 	int paddr = (ppn*pageSize) + offset;
 
-	if (Lib.test(dbgProcessor))
+	if (traceProcessor)
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
@@ -372,22 +850,109 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceProcessor)
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int paddr = translate(vaddr, size, false);
+	int value;
+
+	switch (size) {
+	case 4:
+	    value = mainMemory.getInt(paddr);
+	    break;
+	case 2:
+	    value = mainMemory.getShort(paddr);
+	    break;
+	default:
+	    value = mainMemory.get(paddr);
+	    break;
+	}
 
-	if (Lib.test(dbgProcessor))
+	if (traceProcessor)
 	    System.out.println("\t\tvalue read=0x" +
 			       Lib.toHexString(value, size*2));
 	
 	return value;
     }
     
+    /**
+     * Fetch and decode the instruction at <i>vaddr</i>. Decoded instructions
+     * are cached by physical address, so an instruction is only decoded the
+     * first time it is executed from a given physical page, or after that
+     * page is modified.
+     *
+     * @param	vaddr	the virtual address of the instruction.
+     * @return		the decoded instruction.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private Decoded fetchDecoded(int vaddr) throws MipsException {
+	if (traceProcessor)
+	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+			       + ", size=4");
+
+	Decoded decoded = decode(translate(vaddr, 4, false, lastFetch));
+
+	if (traceProcessor)
+	    System.out.println("\t\tvalue read=0x" +
+			       Lib.toHexString(decoded.value, 8));
+
+	return decoded;
+    }
+
+    /**
+     * Return the decoded instruction at the specified physical address,
+     * decoding it if it is not already cached.
+     *
+     * @param	paddr	the word-aligned physical address of the instruction.
+     * @return	the decoded instruction.
+     */
+    private Decoded decode(int paddr) {
+	Decoded[] page = decodedPages[paddr / pageSize];
+	if (page == null) {
+	    page = new Decoded[pageSize / 4];
+	    decodedPages[paddr / pageSize] = page;
+	}
+
+	int index = (paddr % pageSize) / 4;
+	Decoded decoded = page[index];
+	if (decoded == null) {
+	    decoded = new Decoded(mainMemory.getInt(paddr));
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Translate <i>vaddr</i> as an instruction fetch and return the basic
+     * block starting there, building it if it is not already cached.
+     *
+     * @param	vaddr	the virtual address of the first instruction.
+     * @return		the basic block.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private Block fetchBlock(int vaddr) throws MipsException {
+	int paddr = translate(vaddr, 4, false, lastFetch);
+
+	Block[] page = blockPages[paddr / pageSize];
+	if (page == null) {
+	    page = new Block[pageSize / 4];
+	    blockPages[paddr / pageSize] = page;
+	}
+
+	int index = (paddr % pageSize) / 4;
+	Block block = page[index];
+	if (block == null) {
+	    block = new Block(paddr);
+	    page[index] = block;
+	}
+
+	return block;
+    }
+    
     /**
      * Write <i>value</i> to </i>size</i> (1, 2, or 4) bytes of virtual memory
      * starting at <i>vaddr</i>.
@@ -399,15 +964,35 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceProcessor)
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size + ", value=0x"
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	int paddr = translate(vaddr, size, true);
+
+	switch (size) {
+	case 4:
+	    mainMemory.putInt(paddr, value);
+	    break;
+	case 2:
+	    mainMemory.putShort(paddr, (short) value);
+	    break;
+	default:
+	    mainMemory.put(paddr, (byte) value);
+	    break;
+	}
+
+	// drop the cached decoding of the modified word, if any
+	Decoded[] page = decodedPages[paddr / pageSize];
+	if (page != null)
+	    page[(paddr % pageSize) / 4] = null;
+
+	// and any basic blocks that might contain it
+	if (blockPages[paddr / pageSize] != null)
+	    blockPages[paddr / pageSize] = null;
     }
 
     /**
@@ -541,20 +1126,70 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbAssociativity = 4;
+    /** Number of TLB sets. */
+    private int numTLBSets = 1;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
 
+    /** The last translation used by an instruction fetch. */
+    private LastTranslation lastFetch = new LastTranslation();
+    /** The last translation used by a load or store. */
+    private LastTranslation lastData = new LastTranslation();
+
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
     /** Number of pages in a 32-bit address space. */
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
-    /** Main memory for user programs. */
-    private byte[] mainMemory;
+    /**
+     * Main memory for user programs, in little-endian order, so that
+     * halfwords and words are read and written in one access instead of a
+     * byte at a time. <tt>translate()</tt> only lets aligned accesses
+     * through, but the buffer handles unaligned offsets as well.
+     *
+     * <p>
+     * The <tt>nachos.conf</tt> key <tt>Processor.memory</tt> selects the
+     * backing: <tt>heap</tt> (the default) for a Java array, <tt>direct</tt>
+     * for memory outside the Java heap, or <tt>mapped</tt> for the host file
+     * named by <tt>Processor.memoryFile</tt>. Large machines should use one
+     * of the latter two, which the garbage collector does not scan.
+     */
+    private ByteBuffer mainMemory;
+    /** A page of zeroes, for clearing physical memory. */
+    private static final byte[] zeroPage = new byte[pageSize];
+    /**
+     * Cached instruction decodings, indexed by physical page number and then
+     * by word within the page. A <tt>null</tt> page or entry has not been
+     * decoded since it was last modified.
+     */
+    private Decoded[][] decodedPages;
+    /**
+     * Cached basic blocks, indexed by physical page number and then by the
+     * word within the page at which the block starts.
+     */
+    private Block[][] blockPages;
+
+    /**
+     * One preallocated exception per cause, so that raising an exception
+     * does not allocate.
+     */
+    private MipsException[] exceptions;
+
+    /** The execution engine selected by <tt>Processor.engine</tt>. */
+    private int engine = engineInterpreter;
+
+    /** The number of runs after which the compiled engine compiles a block. */
+    private int compileThreshold = 100;
+
+    private static final int engineInterpreter = 0;
+    private static final int engineBlocks = 1;
+    private static final int engineCompiled = 2;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -563,12 +1198,69 @@ public final class Processor {
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
 
+    /*
+     * The debug flags are only set at boot, so they are read once here
+     * instead of calling Lib.test() for every instruction.
+     */
+    private final boolean traceProcessor = Lib.test(dbgProcessor);
+    private final boolean traceDisassemble = Lib.test(dbgDisassemble);
+    private final boolean traceFullDisassemble = Lib.test(dbgFullDisassemble);
+    private final boolean tracing =
+	traceProcessor || traceDisassemble || traceFullDisassemble;
+
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+	    flushLastTranslations();
 	}
     }
 
+    /**
+     * A one-entry cache of the last virtual page translated for one kind of
+     * memory reference.
+     */
+    private static class LastTranslation {
+	/** The virtual page number, or -1 if there is none. */
+	int vpn = -1;
+	/** The translation entry used for <tt>vpn</tt>. */
+	TranslationEntry entry = null;
+    }
+
+    /**
+     * Return the preallocated exception for <i>cause</i>, ready to throw.
+     *
+     * @param	cause	the exception cause.
+     * @return	the exception.
+     */
+    private MipsException raise(int cause) {
+	MipsException e = exceptions[cause];
+	e.hasBadVAddr = false;
+	return e;
+    }
+
+    /**
+     * Return the preallocated exception for <i>cause</i>, ready to throw,
+     * with its bad virtual address set.
+     *
+     * @param	cause		the exception cause.
+     * @param	badVAddr	the virtual address that caused the exception.
+     * @return	the exception.
+     */
+    private MipsException raise(int cause, int badVAddr) {
+	MipsException e = exceptions[cause];
+	e.hasBadVAddr = true;
+	e.badVAddr = badVAddr;
+	return e;
+    }
+
+    /**
+     * A processor exception. There is one instance per cause, reused every
+     * time that cause is raised (see <tt>raise()</tt>), so instances carry
+     * no stack trace. Only one user thread runs on the processor at a time,
+     * and <tt>handle()</tt> stores the cause and bad address in registers
+     * before calling into the kernel, so reuse is safe even if the handler
+     * switches threads.
+     */
     private class MipsException extends Exception {
 	public MipsException(int cause) {
 	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
@@ -576,11 +1268,8 @@ public final class Processor {
 	    this.cause = cause;
 	}
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
-
-	    hasBadVAddr = true;
-	    this.badVAddr = badVAddr;
+	public Throwable fillInStackTrace() {
+	    return this;
 	}
 
 	public void handle() {
@@ -589,11 +1278,14 @@ public final class Processor {
 	    if (hasBadVAddr)
 		writeRegister(regBadVAddr, badVAddr);
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+	    if (traceDisassemble || traceFullDisassemble)
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
 
+	    // the kernel may change translations while handling this
+	    flushLastTranslations();
+
 	    Lib.assertTrue(exceptionHandler != null);
 
 	    // autograder might not want kernel to know about this exception
@@ -604,7 +1296,8 @@ public final class Processor {
 	}
 
 	private boolean hasBadVAddr = false;
-	private int cause, badVAddr;
+	private int badVAddr;
+	private final int cause;
     }	
 
     private class Instruction {
@@ -621,68 +1314,60 @@ public final class Processor {
 	}
 
 	private void fetch() throws MipsException {
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
+	    if ((traceDisassemble && !traceProcessor) ||
+		traceFullDisassemble)
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    decoded = fetchDecoded(registers[regPC]);
 	}
 	
+	/**
+	 * Execute an instruction that has already been fetched and decoded,
+	 * without any tracing. Used by the basic-block engine.
+	 *
+	 * @param	decoded	the instruction to execute.
+	 */
+	public void step(Decoded decoded) throws MipsException {
+	    this.decoded = decoded;
+	    readOperands();
+	    execute();
+	    retire();
+	}
+
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
+	    readOperands();
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	    if (traceDisassemble || traceFullDisassemble)
+		print();	    
+	}
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	private void readOperands() {
+	    // the static fields come from the decode cache
+	    value = decoded.value;
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
@@ -717,14 +1402,11 @@ public final class Processor {
 		src1 &= 0xFFFFFFFFL;
 		src2 &= 0xFFFFFFFFL;
 	    }	    
-
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-		print();	    
 	}
 
 	private void print() {
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
+	    if (traceDisassemble && traceProcessor &&
+		!traceFullDisassemble)
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 	    
@@ -756,7 +1438,7 @@ public final class Processor {
 		    minCharsPrinted += 2;
 		    maxCharsPrinted += 3;
 		    
-		    if (Lib.test(dbgFullDisassemble)) {
+		    if (traceFullDisassemble) {
 			System.out.print("#0x" +
 					 Lib.toHexString(registers[rs]));
 			minCharsPrinted += 11;
@@ -768,7 +1450,7 @@ public final class Processor {
 		    minCharsPrinted += 2;
 		    maxCharsPrinted += 3;
 
-		    if (Lib.test(dbgFullDisassemble) &&
+		    if (traceFullDisassemble &&
 			(i!=0 || !test(Mips.DST)) &&
 			!test(Mips.DELAYEDLOAD)) {
 			System.out.print("#0x" +
@@ -800,7 +1482,7 @@ public final class Processor {
 		    minCharsPrinted += 4;
 		    maxCharsPrinted += 5;
 
-		    if (Lib.test(dbgFullDisassemble)) {
+		    if (traceFullDisassemble) {
 			System.out.print("#0x" +
 					 Lib.toHexString(registers[rs]));
 			minCharsPrinted += 11;
@@ -840,8 +1522,8 @@ public final class Processor {
 		}
 	    }
 
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
+	    if (traceDisassemble && traceProcessor &&
+		!traceFullDisassemble)
 		System.out.print("\n");
 	}
 
@@ -862,15 +1544,13 @@ public final class Processor {
 		registers[regHi] = (int) Lib.extract(dst, 32, 32);
 		break;
 	    case Mips.DIV:
-		try {
-		    registers[regLo] = (int) (src1 / src2);
-		    registers[regHi] = (int) (src1 % src2);
-		    if (registers[regLo]*src2 + registers[regHi] != src1)
-			throw new ArithmeticException();
-		}
-		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
-		}
+		if (src2 == 0)
+		    throw raise(exceptionOverflow);
+		
+		registers[regLo] = (int) (src1 / src2);
+		registers[regHi] = (int) (src1 % src2);
+		if (registers[regLo]*src2 + registers[regHi] != src1)
+		    throw raise(exceptionOverflow);
 		break;
 
 	    case Mips.SLL:
@@ -939,7 +1619,7 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw raise(exceptionSyscall);
 
 	    case Mips.LOAD:
 		value = readMem(addr, size);
@@ -1009,7 +1689,7 @@ public final class Processor {
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw raise(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
@@ -1017,9 +1697,25 @@ public final class Processor {
 	}
 
 	private void writeBack() throws MipsException {
+	    retire();
+
+	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+		if (traceFullDisassemble) {
+		    System.out.print("#0x" + Lib.toHexString((int) dst));
+		    if (test(Mips.DELAYEDLOAD))
+			System.out.print(" (delayed load)");
+		}
+	    }
+
+	    if ((traceDisassemble && !traceProcessor) ||
+		traceFullDisassemble)
+		System.out.print("\n");
+	}
+
+	private void retire() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw raise(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1032,26 +1728,15 @@ public final class Processor {
 	    if (test(Mips.DST) && dstReg != 0)
 		registers[dstReg] = (int) dst;
 
-	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-		if (Lib.test(dbgFullDisassemble)) {
-		    System.out.print("#0x" + Lib.toHexString((int) dst));
-		    if (test(Mips.DELAYEDLOAD))
-			System.out.print(" (delayed load)");
-		}
-	    }
-
 	    if (test(Mips.BRANCH) && branch) {
 		nextPC = jtarget;
 	    }
 
 	    advancePC(nextPC);
-
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("\n");
 	}
     
 	// state used to execute a single instruction
+	Decoded decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1748,692 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The fields of an instruction word that do not depend on processor
+     * state, along with its entry in the <tt>Mips</tt> tables.
+     */
+    private static class Decoded {
+	Decoded(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg;
+    }
+
+    /**
+     * A straight-line sequence of decoded instructions within one physical
+     * page. A block ends after the delay slot of a branch or jump, at an
+     * instruction that always traps, or at the end of the page.
+     */
+    private class Block {
+	Block(int paddr) {
+	    ppn = paddr / pageSize;
+
+	    int end = (ppn+1) * pageSize;
+	    int length = 0;
+	    Decoded[] buf = new Decoded[(end - paddr) / 4];
+
+	    while (paddr < end) {
+		Decoded decoded = decode(paddr);
+		buf[length++] = decoded;
+		paddr += 4;
+
+		if (decoded.operation == Mips.SYSCALL ||
+		    decoded.operation == Mips.UNIMPL ||
+		    decoded.operation == Mips.INVALID)
+		    break;
+
+		if (Lib.test(Mips.BRANCH, decoded.flags)) {
+		    // include the delay slot, if it is on this page
+		    if (paddr < end)
+			buf[length++] = decode(paddr);
+		    break;
+		}
+	    }
+
+	    insts = new Decoded[length];
+	    System.arraycopy(buf, 0, insts, 0, length);
+	}
+
+	/** Translate every instruction in this block into a handler. */
+	void compile() {
+	    Op[] ops = new Op[insts.length];
+	    for (int i=0; i<insts.length; i++)
+		ops[i] = Processor.this.compile(insts[i]);
+
+	    this.ops = ops;
+	}
+
+	final int ppn;
+	final Decoded[] insts;
+
+	/** The number of times this block has been entered. */
+	int executions = 0;
+	/** The compiled handlers, or <tt>null</tt> if not yet compiled. */
+	Op[] ops = null;
+    }
+
+    /**
+     * A MIPS instruction translated into a handler specialized for its
+     * operation and operands. Running a handler has exactly the same effect as
+     * running the instruction through <tt>Instruction</tt>, but skips the
+     * generic operand selection and flag tests, so that HotSpot can compile
+     * hot blocks into tight code.
+     */
+    private abstract class Op {
+	Op(Decoded decoded) {
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    imm = decoded.imm;
+	    dstReg = decoded.dstReg;
+	}
+
+	abstract void run() throws MipsException;
+
+	/**
+	 * Complete the delayed load in progress, write the result of this
+	 * instruction, and advance to the next sequential instruction.
+	 */
+	final void retire(int dst) {
+	    finishLoad();
+
+	    if (dstReg != 0)
+		registers[dstReg] = dst;
+
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	/**
+	 * Complete the delayed load in progress, and advance to the next
+	 * sequential instruction without writing a register.
+	 */
+	final void retire() {
+	    finishLoad();
+
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	/**
+	 * Complete the delayed load in progress, write the return address if
+	 * this is a linking branch, and branch to <i>jtarget</i> if
+	 * <i>taken</i>.
+	 */
+	final void branch(boolean taken, int jtarget, boolean link) {
+	    int nextPC = registers[regNextPC]+4;
+
+	    finishLoad();
+
+	    if (link && dstReg != 0)
+		registers[dstReg] = nextPC;
+
+	    advancePC(taken ? jtarget : nextPC);
+	}
+
+	/** Schedule a delayed load, and advance to the next instruction. */
+	final void retireLoad(int dst, int mask) {
+	    delayedLoad(dstReg, dst, mask);
+
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	/** Test the carry out of a 32-bit signed operation. */
+	final boolean overflowed(long dst) {
+	    return Lib.test(dst,31) != Lib.test(dst,32);
+	}
+
+	final int rs, rt, rd, sh, imm, dstReg;
+    }
+
+    private class AddOp extends Op {
+	AddOp(Decoded decoded, boolean trap) {
+	    super(decoded);
+	    this.trap = trap;
+	}
+
+	void run() throws MipsException {
+	    long dst = (long) registers[rs] + registers[rt];
+	    if (trap && overflowed(dst))
+		throw raise(exceptionOverflow);
+	    retire((int) dst);
+	}
+
+	private final boolean trap;
+    }
+
+    private class AddImmOp extends Op {
+	AddImmOp(Decoded decoded, boolean trap) {
+	    super(decoded);
+	    this.trap = trap;
+	}
+
+	void run() throws MipsException {
+	    long dst = (long) registers[rs] + imm;
+	    if (trap && overflowed(dst))
+		throw raise(exceptionOverflow);
+	    retire((int) dst);
+	}
+
+	private final boolean trap;
+    }
+
+    private class SubOp extends Op {
+	SubOp(Decoded decoded, boolean trap) {
+	    super(decoded);
+	    this.trap = trap;
+	}
+
+	void run() throws MipsException {
+	    long dst = (long) registers[rs] - registers[rt];
+	    if (trap && overflowed(dst))
+		throw raise(exceptionOverflow);
+	    retire((int) dst);
+	}
+
+	private final boolean trap;
+    }
+
+    private class AndOp extends Op {
+	AndOp(Decoded decoded) { super(decoded); }
+
+	void run() { retire(registers[rs] & registers[rt]); }
+    }
+
+    private class OrOp extends Op {
+	OrOp(Decoded decoded) { super(decoded); }
+
+	void run() { retire(registers[rs] | registers[rt]); }
+    }
+
+    private class XorOp extends Op {
+	XorOp(Decoded decoded) { super(decoded); }
+
+	void run() { retire(registers[rs] ^ registers[rt]); }
+    }
+
+    private class NorOp extends Op {
+	NorOp(Decoded decoded) { super(decoded); }
+
+	void run() { retire(~(registers[rs] | registers[rt])); }
+    }
+
+    private class AndImmOp extends Op {
+	AndImmOp(Decoded decoded) { super(decoded); }
+
+	void run() { retire(registers[rs] & (imm & 0xFFFF)); }
+    }
+
+    private class OrImmOp extends Op {
+	OrImmOp(Decoded decoded) { super(decoded); }
+
+	void run() { retire(registers[rs] | (imm & 0xFFFF)); }
+    }
+
+    private class XorImmOp extends Op {
+	XorImmOp(Decoded decoded) { super(decoded); }
+
+	void run() { retire(registers[rs] ^ (imm & 0xFFFF)); }
+    }
+
+    private class LuiOp extends Op {
+	LuiOp(Decoded decoded) { super(decoded); }
+
+	void run() { retire((imm & 0xFFFF) << 16); }
+    }
+
+    private class SltOp extends Op {
+	SltOp(Decoded decoded, boolean unsigned) {
+	    super(decoded);
+	    this.unsigned = unsigned;
+	}
+
+	void run() {
+	    long src1 = registers[rs], src2 = registers[rt];
+	    if (unsigned) {
+		src1 &= 0xFFFFFFFFL;
+		src2 &= 0xFFFFFFFFL;
+	    }
+	    retire((src1<src2) ? 1 : 0);
+	}
+
+	private final boolean unsigned;
+    }
+
+    private class SltImmOp extends Op {
+	SltImmOp(Decoded decoded, boolean unsigned) {
+	    super(decoded);
+	    this.unsigned = unsigned;
+	}
+
+	void run() {
+	    // unsigned comparisons zero-extend the immediate, as Instruction does
+	    long src1 = registers[rs], src2 = imm;
+	    if (unsigned) {
+		src1 &= 0xFFFFFFFFL;
+		src2 &= 0xFFFFL;
+	    }
+	    retire((src1<src2) ? 1 : 0);
+	}
+
+	private final boolean unsigned;
+    }
+
+    private class ShiftOp extends Op {
+	ShiftOp(Decoded decoded, int operation, boolean variable) {
+	    super(decoded);
+	    this.operation = operation;
+	    this.variable = variable;
+	}
+
+	void run() {
+	    int amount = (variable ? registers[rs] : sh) & 0x1F;
+	    long src2 = registers[rt];
+
+	    // shifts operate on the sign-extended source, as Instruction does
+	    switch (operation) {
+	    case Mips.SLL:
+		retire((int) (src2 << amount));
+		break;
+	    case Mips.SRA:
+		retire((int) (src2 >> amount));
+		break;
+	    default:
+		retire((int) (src2 >>> amount));
+		break;
+	    }
+	}
+
+	private final int operation;
+	private final boolean variable;
+    }
+
+    private class MultOp extends Op {
+	MultOp(Decoded decoded, boolean unsigned) {
+	    super(decoded);
+	    this.unsigned = unsigned;
+	}
+
+	void run() {
+	    long src1 = registers[rs], src2 = registers[rt];
+	    if (unsigned) {
+		src1 &= 0xFFFFFFFFL;
+		src2 &= 0xFFFFFFFFL;
+	    }
+	    long dst = src1 * src2;
+	    registers[regLo] = (int) Lib.extract(dst, 0, 32);
+	    registers[regHi] = (int) Lib.extract(dst, 32, 32);
+	    retire();
+	}
+
+	private final boolean unsigned;
+    }
+
+    private class DivOp extends Op {
+	DivOp(Decoded decoded, boolean unsigned) {
+	    super(decoded);
+	    this.unsigned = unsigned;
+	}
+
+	void run() throws MipsException {
+	    long src1 = registers[rs], src2 = registers[rt];
+	    if (unsigned) {
+		src1 &= 0xFFFFFFFFL;
+		src2 &= 0xFFFFFFFFL;
+	    }
+	    if (src2 == 0)
+		throw raise(exceptionOverflow);
+	    
+	    registers[regLo] = (int) (src1 / src2);
+	    registers[regHi] = (int) (src1 % src2);
+	    if (registers[regLo]*src2 + registers[regHi] != src1)
+		throw raise(exceptionOverflow);
+	    retire();
+	}
+
+	private final boolean unsigned;
+    }
+
+    private class MoveFromOp extends Op {
+	MoveFromOp(Decoded decoded, int reg) {
+	    super(decoded);
+	    this.reg = reg;
+	}
+
+	void run() { retire(registers[reg]); }
+
+	private final int reg;
+    }
+
+    private class MoveToOp extends Op {
+	MoveToOp(Decoded decoded, int reg) {
+	    super(decoded);
+	    this.reg = reg;
+	}
+
+	void run() {
+	    registers[reg] = registers[rs];
+	    retire();
+	}
+
+	private final int reg;
+    }
+
+    private class BranchOp extends Op {
+	BranchOp(Decoded decoded, int operation, boolean link) {
+	    super(decoded);
+	    this.operation = operation;
+	    this.link = link;
+	}
+
+	void run() {
+	    int src1 = registers[rs];
+	    boolean taken;
+	    
+	    switch (operation) {
+	    case Mips.BEQ:
+		taken = (src1 == registers[rt]);
+		break;
+	    case Mips.BNE:
+		taken = (src1 != registers[rt]);
+		break;
+	    case Mips.BGEZ:
+		taken = (src1 >= 0);
+		break;
+	    case Mips.BGTZ:
+		taken = (src1 > 0);
+		break;
+	    case Mips.BLEZ:
+		taken = (src1 <= 0);
+		break;
+	    default:
+		taken = (src1 < 0);
+		break;
+	    }
+
+	    branch(taken, registers[regNextPC] + (imm<<2), link);
+	}
+
+	private final int operation;
+	private final boolean link;
+    }
+
+    private class JumpOp extends Op {
+	JumpOp(Decoded decoded, boolean link) {
+	    super(decoded);
+	    this.target = decoded.target;
+	    this.link = link;
+	}
+
+	void run() {
+	    branch(true, (registers[regNextPC]&0xF0000000) | (target<<2), link);
+	}
+
+	private final int target;
+	private final boolean link;
+    }
+
+    private class JumpRegOp extends Op {
+	JumpRegOp(Decoded decoded, boolean link) {
+	    super(decoded);
+	    this.link = link;
+	}
+
+	void run() {
+	    branch(true, registers[rs], link);
+	}
+
+	private final boolean link;
+    }
+
+    private class LoadOp extends Op {
+	LoadOp(Decoded decoded, boolean unsigned) {
+	    super(decoded);
+	    this.size = decoded.size;
+	    this.unsigned = unsigned;
+	}
+
+	void run() throws MipsException {
+	    // unsigned loads zero-extend the offset, as Instruction does
+	    int addr = registers[rs] + (unsigned ? imm & 0xFFFF : imm);
+	    int value = readMem(addr, size);
+
+	    if (!unsigned)
+		value = Lib.extend(value, 0, size*8);
+
+	    retireLoad(value, 0xFFFFFFFF);
+	}
+
+	private final int size;
+	private final boolean unsigned;
+    }
+
+    private class LoadLeftOp extends Op {
+	LoadLeftOp(Decoded decoded) { super(decoded); }
+
+	void run() throws MipsException {
+	    int addr = registers[rs] + imm;
+	    int value = readMem(addr&~0x3, 4);
+	    
+	    int preserved = (3-(addr&0x3))*8;
+	    retireLoad(value << preserved, -1 << preserved);
+	}
+    }
+
+    private class LoadRightOp extends Op {
+	LoadRightOp(Decoded decoded) { super(decoded); }
+
+	void run() throws MipsException {
+	    int addr = registers[rs] + imm;
+	    int value = readMem(addr&~0x3, 4);
+	    
+	    int preserved = (addr&0x3)*8;
+	    retireLoad(value >>> preserved, -1 >>> preserved);
+	}
+    }
+
+    private class StoreOp extends Op {
+	StoreOp(Decoded decoded) {
+	    super(decoded);
+	    this.size = decoded.size;
+	}
+
+	void run() throws MipsException {
+	    writeMem(registers[rs] + imm, size, registers[rt]);
+	    retire();
+	}
+
+	private final int size;
+    }
+
+    private class StoreLeftOp extends Op {
+	StoreLeftOp(Decoded decoded) { super(decoded); }
+
+	void run() throws MipsException {
+	    int addr = registers[rs] + imm;
+	    int value = readMem(addr&~0x3, 4);
+
+	    int preserved = (3-(addr&0x3))*8;
+	    int mask = -1 >>> preserved;
+	    int dst = (int) (((long) registers[rt]) >>> preserved);
+
+	    writeMem(addr&~0x3, 4, (dst & mask) | (value & ~mask));
+	    retire();
+	}
+    }
+
+    private class StoreRightOp extends Op {
+	StoreRightOp(Decoded decoded) { super(decoded); }
+
+	void run() throws MipsException {
+	    int addr = registers[rs] + imm;
+	    int value = readMem(addr&~0x3, 4);
+
+	    int preserved = (addr&0x3)*8;
+	    int mask = -1 << preserved;
+	    int dst = registers[rt] << preserved;
+
+	    writeMem(addr&~0x3, 4, (dst & mask) | (value & ~mask));
+	    retire();
+	}
+    }
+
+    private class TrapOp extends Op {
+	TrapOp(Decoded decoded, int cause) {
+	    super(decoded);
+	    this.cause = cause;
+	    this.unimplemented = (decoded.operation == Mips.UNIMPL);
+	}
+
+	void run() throws MipsException {
+	    if (unimplemented)
+		System.err.println("Warning: encountered unimplemented inst");
+	    
+	    throw raise(cause);
+	}
+
+	private final int cause;
+	private final boolean unimplemented;
+    }
+
+    /**
+     * Translate a decoded instruction into a specialized handler.
+     *
+     * @param	decoded	the instruction to translate.
+     * @return	the handler.
+     */
+    private Op compile(Decoded decoded) {
+	boolean unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+	boolean trap = Lib.test(Mips.OVERFLOW, decoded.flags);
+	boolean link = Lib.test(Mips.LINK, decoded.flags);
+	boolean immediate = Lib.test(Mips.SRC2IMM, decoded.flags);
+
+	switch (decoded.operation) {
+	case Mips.ADD:
+	    return immediate ?
+		(Op) new AddImmOp(decoded, trap) : new AddOp(decoded, trap);
+	case Mips.SUB:
+	    return new SubOp(decoded, trap);
+	case Mips.MULT:
+	    return new MultOp(decoded, unsigned);
+	case Mips.DIV:
+	    return new DivOp(decoded, unsigned);
+
+	case Mips.SLL:
+	case Mips.SRA:
+	case Mips.SRL:
+	    return new ShiftOp(decoded, decoded.operation,
+			       !Lib.test(Mips.SRC1SH, decoded.flags));
+
+	case Mips.SLT:
+	    return immediate ?
+		(Op) new SltImmOp(decoded, unsigned) :
+		new SltOp(decoded, unsigned);
+
+	case Mips.AND:
+	    return immediate ? (Op) new AndImmOp(decoded) : new AndOp(decoded);
+	case Mips.OR:
+	    return immediate ? (Op) new OrImmOp(decoded) : new OrOp(decoded);
+	case Mips.XOR:
+	    return immediate ? (Op) new XorImmOp(decoded) : new XorOp(decoded);
+	case Mips.NOR:
+	    return new NorOp(decoded);
+	case Mips.LUI:
+	    return new LuiOp(decoded);
+
+	case Mips.BEQ:
+	case Mips.BNE:
+	case Mips.BGEZ:
+	case Mips.BGTZ:
+	case Mips.BLEZ:
+	case Mips.BLTZ:
+	    return new BranchOp(decoded, decoded.operation, link);
+	case Mips.JUMP:
+	    if (decoded.format == Mips.JFMT)
+		return new JumpOp(decoded, link);
+	    else
+		return new JumpRegOp(decoded, link);
+
+	case Mips.MFLO:
+	    return new MoveFromOp(decoded, regLo);
+	case Mips.MFHI:
+	    return new MoveFromOp(decoded, regHi);
+	case Mips.MTLO:
+	    return new MoveToOp(decoded, regLo);
+	case Mips.MTHI:
+	    return new MoveToOp(decoded, regHi);
+
+	case Mips.SYSCALL:
+	    return new TrapOp(decoded, exceptionSyscall);
+
+	case Mips.LOAD:
+	    return new LoadOp(decoded, unsigned);
+	case Mips.LWL:
+	    return new LoadLeftOp(decoded);
+	case Mips.LWR:
+	    return new LoadRightOp(decoded);
+	case Mips.STORE:
+	    return new StoreOp(decoded);
+	case Mips.SWL:
+	    return new StoreLeftOp(decoded);
+	case Mips.SWR:
+	    return new StoreRightOp(decoded);
+
+	default:
+	    return new TrapOp(decoded, exceptionIllegalInstruction);
+	}
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -27,6 +27,11 @@ public final class Stats {
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	if (tlbSetHits != null && tlbSetHits.length > 1) {
+	    for (int i=0; i<tlbSetHits.length; i++)
+		System.out.println("  TLB set " + i + ": hits " + tlbSetHits[i]
+				   + ", misses " + tlbSetMisses[i]);
+	}
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
     }
@@ -57,6 +62,16 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /**
+     * The number of TLB hits in each TLB set, or <tt>null</tt> if the
+     * processor does not have a TLB.
+     */
+    public long[] tlbSetHits = null;
+    /**
+     * The number of TLB misses in each TLB set, or <tt>null</tt> if the
+     * processor does not have a TLB.
+     */
+    public long[] tlbSetMisses = null;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
@@ -13,6 +13,11 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * The timer can also be programmed to raise a single interrupt at a given
+ * time, with a handler of its own. This lets a kernel wake threads up when
+ * they are due instead of at the next periodic interrupt.
  */
 public final class Timer {
     /**
@@ -30,6 +35,10 @@ public final class Timer {
 		public void run() { timerInterrupt(); }
 	    };
 	
+	oneShotInterrupt = new Runnable() {
+		public void run() { oneShotInterrupt(); }
+	    };
+
 	autoGraderInterrupt = new Runnable() {
 		public void run() {
 		    Machine.autoGrader().timerInterrupt(Timer.this.privilege,
@@ -50,6 +59,29 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Set the callback to use as the one-shot interrupt handler, which is
+     * called at the time programmed with <tt>setOneShot()</tt>.
+     *
+     * @param	handler		the one-shot interrupt handler.
+     */
+    public void setOneShotHandler(Runnable handler) {
+	oneShotHandler = handler;
+    }
+
+    /**
+     * Program the one-shot interrupt to occur at the given time, or at the
+     * next tick if that time has passed. This replaces any earlier time that
+     * has not yet been reached.
+     *
+     * @param	time	the time at which the one-shot interrupt should occur.
+     */
+    public void setOneShot(long time) {
+	oneShotTime = time;
+	privilege.interrupt.schedule(Math.max(1, time - getTime()),
+				     "timerOneShot", oneShotInterrupt);
+    }
+
     /**
      * Get the current time.
      *
@@ -69,6 +101,17 @@ public final class Timer {
 	    handler.run();
     }
 
+    private void oneShotInterrupt() {
+	// ignore the interrupts for times that have since been replaced
+	if (oneShotTime < 0 || getTime() < oneShotTime)
+	    return;
+
+	oneShotTime = -1;
+
+	if (oneShotHandler != null)
+	    oneShotHandler.run();
+    }
+
     private void scheduleInterrupt() {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
@@ -83,7 +126,11 @@ public final class Timer {
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
+    private Runnable oneShotInterrupt;
+    /** The time programmed for the one-shot interrupt, or -1 if none. */
+    private long oneShotTime = -1;
 
     private Privilege privilege;
     private Runnable handler = null;
+    private Runnable oneShotHandler = null;
 }
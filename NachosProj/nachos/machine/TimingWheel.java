@@ -0,0 +1,378 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * A hierarchical timing wheel, holding the pending interrupts of the
+ * interrupt controller in order of the time they are due. Interrupts due at
+ * the same time are kept in the order in which they were scheduled.
+ *
+ * <p>
+ * Each level of the wheel has 256 slots. Level <i>k</i> is indexed by bits
+ * <i>8k</i> through <i>8k+7</i> of the time. An entry is kept on the level
+ * of the highest byte in which its time differs from <tt>current</tt>, the
+ * time of the last entry removed, so each slot on level 0 only holds entries
+ * due at a single time. When the earliest entry is on a higher level, its
+ * slot is spread over the lower levels before the entry is removed. Adding an
+ * entry and removing the earliest one therefore take constant time, apart
+ * from this, and it moves each entry down at most once per level.
+ *
+ * <p>
+ * Entries are recycled through a free list, so once the wheel has grown to
+ * its working size, scheduling an interrupt does not allocate.
+ */
+final class TimingWheel {
+    /**
+     * Allocate a new, empty timing wheel.
+     */
+    TimingWheel() {
+	heads = new Entry[numLevels][numSlots];
+	tails = new Entry[numLevels][numSlots];
+	occupied = new long[numLevels][numSlots/64];
+	levelSizes = new int[numLevels];
+    }
+
+    /**
+     * Tests whether the wheel is empty.
+     *
+     * @return	<tt>true</tt> if there are no entries.
+     */
+    boolean isEmpty() {
+	return size == 0;
+    }
+
+    /**
+     * Add an entry. The time must not be earlier than that of the last entry
+     * removed.
+     *
+     * @param	time	the time the interrupt is due.
+     * @param	type	the name of the interrupt, for debugging.
+     * @param	handler	the interrupt handler.
+     */
+    void add(long time, String type, Runnable handler) {
+	Lib.assertTrue(time >= current);
+
+	Entry entry = free;
+	if (entry != null)
+	    free = entry.next;
+	else
+	    entry = new Entry();
+
+	entry.time = time;
+	entry.type = type;
+	entry.handler = handler;
+	entry.id = numEntriesAdded++;
+	entry.next = null;
+
+	insert(entry);
+	size++;
+    }
+
+    /**
+     * Return the time of the earliest entry, without removing it.
+     *
+     * @return	the time of the earliest entry, or <tt>Long.MAX_VALUE</tt> if
+     *		the wheel is empty.
+     */
+    long firstTime() {
+	if (size == 0)
+	    return Long.MAX_VALUE;
+
+	int level = lowestLevel();
+	int slot = firstSlot(level);
+
+	if (level == 0)
+	    return (current & ~(long) (numSlots-1)) | slot;
+	else
+	    return earliest(heads[level][slot]).time;
+    }
+
+    /**
+     * Remove and return the earliest entry. Of entries due at the same time,
+     * the one added first is removed first. Once its fields have been read,
+     * the entry should be returned with <tt>free()</tt>.
+     *
+     * @return	the earliest entry.
+     */
+    Entry removeFirst() {
+	Lib.assertTrue(size > 0);
+
+	while (true) {
+	    int level = lowestLevel();
+	    int slot = firstSlot(level);
+	    Entry list = heads[level][slot];
+
+	    if (level == 0) {
+		// every entry in this slot is due at once; take the first
+		current = list.time;
+
+		heads[0][slot] = list.next;
+		if (list.next == null) {
+		    tails[0][slot] = null;
+		    occupied[0][slot/64] &= ~(1L << (slot%64));
+		}
+
+		levelSizes[0]--;
+		size--;
+		return list;
+	    }
+
+	    heads[level][slot] = null;
+	    tails[level][slot] = null;
+	    occupied[level][slot/64] &= ~(1L << (slot%64));
+
+	    // move time up to the earliest entry, and spread its slot over the
+	    // lower levels, keeping the order in which the entries were added
+	    current = earliest(list).time;
+
+	    while (list != null) {
+		Entry next = list.next;
+		list.next = null;
+		levelSizes[level]--;
+		insert(list);
+		list = next;
+	    }
+	}
+    }
+
+    /**
+     * Return an entry removed by <tt>removeFirst()</tt>, so that it can be
+     * reused.
+     *
+     * @param	entry	the entry.
+     */
+    void free(Entry entry) {
+	entry.type = null;
+	entry.handler = null;
+	entry.next = free;
+	free = entry;
+    }
+
+    /**
+     * Return a list of all the entries, in the order they will be removed.
+     * Intended for debugging; the entries must not be modified.
+     *
+     * @return	the entries.
+     */
+    List<Entry> entries() {
+	List<Entry> result = new ArrayList<Entry>(size);
+
+	for (int level=0; level<numLevels; level++) {
+	    for (int slot=0; slot<numSlots; slot++) {
+		for (Entry e=heads[level][slot]; e!=null; e=e.next)
+		    result.add(e);
+	    }
+	}
+
+	Collections.sort(result, new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+		    if (a.time != b.time)
+			return (a.time < b.time) ? -1 : 1;
+		    else
+			return (a.id < b.id) ? -1 : (a.id > b.id ? 1 : 0);
+		}
+	    });
+
+	return result;
+    }
+
+    private void insert(Entry entry) {
+	long diff = entry.time ^ current;
+	int level =
+	    (diff == 0) ? 0 : (63 - Long.numberOfLeadingZeros(diff)) / 8;
+	int slot = (int) (entry.time >>> (8*level)) & (numSlots-1);
+
+	if (tails[level][slot] == null)
+	    heads[level][slot] = entry;
+	else
+	    tails[level][slot].next = entry;
+	tails[level][slot] = entry;
+
+	occupied[level][slot/64] |= 1L << (slot%64);
+	levelSizes[level]++;
+    }
+
+    private int lowestLevel() {
+	for (int level=0; level<numLevels; level++) {
+	    if (levelSizes[level] > 0)
+		return level;
+	}
+
+	Lib.assertNotReached();
+	return -1;
+    }
+
+    /**
+     * Return the first occupied slot on <i>level</i>. Entries on a level are
+     * never earlier than <tt>current</tt>'s own slot there, so the search
+     * starts at that slot and does not wrap around.
+     */
+    private int firstSlot(int level) {
+	int start = (int) (current >>> (8*level)) & (numSlots-1);
+
+	for (int word=start/64; word<numSlots/64; word++) {
+	    long bits = occupied[level][word];
+	    if (word == start/64)
+		bits &= -1L << (start%64);
+
+	    if (bits != 0)
+		return word*64 + Long.numberOfTrailingZeros(bits);
+	}
+
+	Lib.assertNotReached();
+	return -1;
+    }
+
+    private static Entry earliest(Entry list) {
+	Entry min = list;
+	for (Entry e=list.next; e!=null; e=e.next) {
+	    if (e.time < min.time)
+		min = e;
+	}
+	return min;
+    }
+
+    /**
+     * A pending interrupt.
+     */
+    static final class Entry {
+	/** The time the interrupt is due. */
+	long time;
+	/** The name of the interrupt. */
+	String type;
+	/** The interrupt handler. */
+	Runnable handler;
+
+	private long id;
+	private Entry next;
+    }
+
+    private static final int numSlots = 256;
+    private static final int numLevels = 8;
+
+    private Entry[][] heads, tails;
+    private long[][] occupied;
+    private int[] levelSizes;
+    private int size = 0;
+    private long current = 0;
+    private long numEntriesAdded = 0;
+    private Entry free = null;
+
+    /**
+     * Compare the timing wheel with a <tt>TreeSet</tt>, the structure it
+     * replaced, by scheduling and dispatching events the way the interrupt
+     * controller does: a number of events are kept pending, and each time
+     * the earliest one is dispatched, another is scheduled after it.
+     *
+     * <p>
+     * Usage: <tt>java nachos.machine.TimingWheel [<i>events</i>
+     * [<i>pending</i>]]</tt>. The defaults are 4000000 events and 10000
+     * pending.
+     *
+     * @param	args	the command line arguments.
+     */
+    public static void main(String[] args) {
+	int events = (args.length > 0) ? Integer.parseInt(args[0]) : 4000000;
+	int pending = (args.length > 1) ? Integer.parseInt(args[1]) : 10000;
+
+	System.out.println("Scheduling " + events + " events, with " +
+			   pending + " pending at a time");
+
+	for (int round=0; round<3; round++) {
+	    long start = System.currentTimeMillis();
+	    long treeOrder = benchmarkTreeSet(events, pending);
+	    long middle = System.currentTimeMillis();
+	    long wheelOrder = benchmarkWheel(events, pending);
+	    long end = System.currentTimeMillis();
+
+	    Lib.assertTrue(treeOrder == wheelOrder,
+			   "timing wheel order differs from TreeSet");
+
+	    System.out.println("TreeSet: " + (middle-start) + " ms, " +
+			       "TimingWheel: " + (end-middle) + " ms");
+	}
+    }
+
+    private static final Runnable benchmarkHandler = new Runnable() {
+	    public void run() {
+	    }
+	};
+
+    /**
+     * Run the benchmark with a timing wheel, returning a hash of the order
+     * in which the events were dispatched.
+     */
+    private static long benchmarkWheel(int events, int pending) {
+	Random random = new Random(0);
+	TimingWheel wheel = new TimingWheel();
+	long hash = 0;
+
+	for (int i=0; i<pending; i++)
+	    wheel.add(1 + random.nextInt(benchmarkSpread), "event",
+		      benchmarkHandler);
+
+	for (int i=pending; i<events; i++) {
+	    Entry entry = wheel.removeFirst();
+	    long time = entry.time;
+	    hash = hash*31 + entry.id;
+	    wheel.free(entry);
+
+	    wheel.add(time + 1 + random.nextInt(benchmarkSpread), "event",
+		      benchmarkHandler);
+	}
+
+	return hash;
+    }
+
+    /**
+     * Run the benchmark with a <tt>TreeSet</tt>, ordered as the interrupt
+     * controller used to order it, returning a hash of the order in which
+     * the events were dispatched.
+     */
+    private static long benchmarkTreeSet(int events, int pending) {
+	Random random = new Random(0);
+	TreeSet<TreeEntry> tree = new TreeSet<TreeEntry>();
+	long numAdded = 0;
+	long hash = 0;
+
+	for (int i=0; i<pending; i++)
+	    tree.add(new TreeEntry(1 + random.nextInt(benchmarkSpread),
+				   numAdded++));
+
+	for (int i=pending; i<events; i++) {
+	    TreeEntry entry = tree.pollFirst();
+	    hash = hash*31 + entry.id;
+
+	    tree.add(new TreeEntry(entry.time + 1 +
+				   random.nextInt(benchmarkSpread),
+				   numAdded++));
+	}
+
+	return hash;
+    }
+
+    private static class TreeEntry implements Comparable<TreeEntry> {
+	TreeEntry(long time, long id) {
+	    this.time = time;
+	    this.id = id;
+	}
+
+	public int compareTo(TreeEntry e) {
+	    if (time != e.time)
+		return (time < e.time) ? -1 : 1;
+	    else
+		return (id < e.id) ? -1 : (id > e.id ? 1 : 0);
+	}
+
+	long time, id;
+    }
+
+    private static final int benchmarkSpread = 10000;
+}
@@ -63,6 +63,7 @@ public class PostOffice {
 
 	Lib.debug(dbgNet, "waiting for mail on port " + port);
 
+	ThreadedKernel.scheduler.waitingForIO();
 	MailMessage mail = (MailMessage) queues[port].removeFirst();
 
 	if (Lib.test(dbgNet))
@@ -116,6 +117,7 @@ public class PostOffice {
 	sendLock.acquire();
 
 	Machine.networkLink().send(mail.packet);
+	ThreadedKernel.scheduler.waitingForIO();
 	messageSent.P();
 
 	sendLock.release();
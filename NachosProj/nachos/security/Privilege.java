@@ -158,6 +158,24 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of ticks until the earliest pending interrupt is
+	 * due, or <tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+	 *
+	 * @return	the number of ticks until an interrupt handler must run.
+	 */
+	public long ticksUntilDue();
+
+	/**
+	 * Advance the simulated time for the specified number of MIPS user
+	 * instructions, without checking for due interrupts. The caller must
+	 * ensure that no pending interrupt becomes due as a result (see
+	 * <tt>ticksUntilDue()</tt>).
+	 *
+	 * @param	count	the number of user instructions executed.
+	 */
+	public void advanceUser(int count);
     }
 
     /**
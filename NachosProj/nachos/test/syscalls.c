@@ -0,0 +1,22 @@
+/* syscalls.c
+ *	Make a fixed number of cheap system calls, to measure how quickly the
+ *	kernel can take and return from a syscall exception.
+ *
+ *	close(-1) is rejected by the kernel straight away, so almost all of
+ *	the time goes into the exception path itself. bin/nachos-syscalls
+ *	times this program, and reads COUNT from this file.
+ */
+
+#include "syscall.h"
+
+#define COUNT 1000000
+
+int main()
+{
+  int i;
+
+  for (i=0; i<COUNT; i++)
+    close(-1);
+
+  return 0;
+}
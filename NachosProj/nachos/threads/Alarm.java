@@ -1,11 +1,6 @@
 package nachos.threads;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.TreeMap;
-
+import java.util.PriorityQueue;
 
 import nachos.machine.*;
 
@@ -13,6 +8,15 @@ import nachos.machine.*;
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a heap ordered by the time they are due to wake
+ * up, so a timer interrupt only looks at the threads that are due, and takes
+ * <i>O(log n)</i> time for each. If <tt>Alarm.oneShot</tt> is set, the timer
+ * is also programmed to interrupt when the earliest thread is due, so that
+ * threads wake up on time rather than at the next periodic interrupt. That
+ * interrupt preempts the current thread if it wakes any up, as the periodic
+ * one does, so that they run on time even while the CPU is busy.
  */
 public class Alarm {
     /**
@@ -28,43 +32,37 @@ public class Alarm {
 		public void run() { timerInterrupt(); }
 	    });
 
-    	 sleepers  = new HashMap<Long, LinkedList<KThread>>();
-    	 multimapProtector = new Lock();
+	oneShot = Config.getBoolean("Alarm.oneShot", false);
+	if (oneShot) {
+	    Machine.timer().setOneShotHandler(new Runnable() {
+		    public void run() { oneShotInterrupt(); }
+		});
+	}
     }
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Wakes up the threads
+     * that are due, then causes the current thread to yield, forcing a
+     * context switch if there is another thread that should be run.
      */
     public void timerInterrupt()
     {
+	wakeSleepers();
+
+    	ThreadedKernel.scheduler.timerTick();
     	KThread.currentThread().yield();
+    }
 
-    	boolean oldInterrupStatus = Machine.interrupt().disable();
-
-
-    	int mapsz = sleepers.size();
-    	Iterator iter = sleepers.entrySet().iterator();
-    	for(int i = 0; i < mapsz; ++i)
-    	{
-    		Map.Entry entry = (Map.Entry) iter.next();
-    		Long time = (Long)entry.getKey();
-    		LinkedList<KThread> lst = (LinkedList<KThread>)entry.getValue();
-    		if( Machine.timer().getTime() >= time)
-    		{
-    			int lstsize = lst.size();
-    			for(int j = 0; j < lstsize ; j++)
-    			{
-    				KThread thread = lst.get(j);
-    				thread.ready();
-    				lst.remove(j);
-    			}
-    		}
-    	}
-		// enable the interrupt
-		Machine.interrupt().restore(oldInterrupStatus);
+    /**
+     * The one-shot timer interrupt handler, called when the earliest thread
+     * is due. Wakes up the threads that are due, and if there were any,
+     * causes the current thread to yield to them.
+     */
+    private void oneShotInterrupt()
+    {
+	if (wakeSleepers())
+	    KThread.currentThread().yield();
     }
 
     /**
@@ -83,23 +81,81 @@ public class Alarm {
      */
     public void waitUntil(long x)
     {
-		Long wakeTime = Machine.timer().getTime() + x;
-		// inserting in the multimap should be mutually exclusive to protect the multimap
-		multimapProtector.acquire();
-		LinkedList<KThread> lst = (LinkedList<KThread>) sleepers.get(wakeTime);
-		if(lst == null)
-		{
-			lst = new LinkedList<KThread>();
-			sleepers.put(wakeTime, lst);
-		}
-		lst.add(KThread.currentThread());
-		// release the lock
-		multimapProtector.release();
-		// put me to sleep
-		boolean oldInterrupStatus = Machine.interrupt().disable();
-		KThread.currentThread().sleep();
-		// enable the interrupt
-		Machine.interrupt().restore(oldInterrupStatus);
+	// the heap is shared with the interrupt handler, so it is protected by
+	// disabling interrupts rather than by a lock
+	boolean oldInterrupStatus = Machine.interrupt().disable();
+
+	Sleeper sleeper = new Sleeper(Machine.timer().getTime() + x,
+				      numSleepers++, KThread.currentThread());
+	sleepers.add(sleeper);
+
+	if (oneShot && sleepers.peek() == sleeper)
+	    program(sleeper.wakeTime);
+
+	KThread.sleep();
+
+	Machine.interrupt().restore(oldInterrupStatus);
+    }
+
+    /**
+     * Wake up every thread that is due, in the order they are due, and, if
+     * <tt>Alarm.oneShot</tt> is set, program the timer for the next one.
+     *
+     * @return	<tt>true</tt> if any thread was woken up.
+     */
+    private boolean wakeSleepers()
+    {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+	boolean woken = false;
+
+	while (!sleepers.isEmpty() && sleepers.peek().wakeTime <= time) {
+	    sleepers.poll().thread.ready();
+	    woken = true;
+	}
+
+	if (oneShot && !sleepers.isEmpty())
+	    program(sleepers.peek().wakeTime);
+
+	return woken;
+    }
+
+    /**
+     * Program the one-shot timer interrupt for the given time, unless it is
+     * already programmed for that time.
+     */
+    private void program(long wakeTime)
+    {
+	if (wakeTime != programmedTime) {
+	    programmedTime = wakeTime;
+	    Machine.timer().setOneShot(wakeTime);
+	}
+    }
+
+    /**
+     * A sleeping thread and the time it is due to wake up. Threads due at the
+     * same time wake up in the order they went to sleep.
+     */
+    private static class Sleeper implements Comparable<Sleeper>
+    {
+	Sleeper(long wakeTime, long order, KThread thread)
+	{
+	    this.wakeTime = wakeTime;
+	    this.order = order;
+	    this.thread = thread;
+	}
+
+	public int compareTo(Sleeper s)
+	{
+	    if (wakeTime != s.wakeTime)
+		return (wakeTime < s.wakeTime) ? -1 : 1;
+	    else
+		return (order < s.order) ? -1 : (order > s.order ? 1 : 0);
+	}
+
+	long wakeTime, order;
+	KThread thread;
     }
 
     // # Q3
@@ -143,13 +199,11 @@ public class Alarm {
         sleepy3.join();
     }
 
-    // # Q3
-    // This is a multimap of KThreads (a TreeMap of Longs to Lists)
-    // We use a multimap because it is more efficient - since a multimap is
-    // sorted we can stop iterating when we reach a value greater thn the current time
-    // (look in timerInterrupt for more details)
-    private Map sleepers;
-    // Lock for protecting the multimap access
-    Lock multimapProtector;
+    // the sleeping threads, earliest first
+    private PriorityQueue<Sleeper> sleepers = new PriorityQueue<Sleeper>();
+    private long numSleepers = 0;
+    private boolean oneShot;
+    /** The time the one-shot timer interrupt was last programmed for. */
+    private long programmedTime = -1;
     private static final char dbgThread = 't';
 }
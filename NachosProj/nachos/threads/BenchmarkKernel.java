@@ -0,0 +1,628 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A kernel that measures how quickly the thread primitives pass control
+ * between threads, and how fairly, under whichever scheduler
+ * <tt>ThreadedKernel.scheduler</tt> selects. Each benchmark runs a loop in
+ * the main thread and a matching loop in a second thread, and counts one
+ * operation per iteration of the main thread's loop: one yield by each
+ * thread, one round trip between them, or one word passed through a
+ * <tt>Communicator</tt>. The <tt>channel</tt> benchmarks pass words through
+ * a <tt>BufferedChannel</tt>, one at a time with a capacity of 0 or 64, and
+ * 16 at a time with a capacity of 64 (<tt>channel/bulk</tt>); they count one
+ * operation per word.
+ *
+ * <p>
+ * In the <tt>broadcast</tt> benchmarks,
+ * <tt>BenchmarkKernel.broadcastWaiters</tt> threads sleep on a condition
+ * variable and the main thread wakes them all,
+ * <tt>BenchmarkKernel.broadcastRounds</tt> times; each thread yields once it
+ * is awake, while still holding the lock. They count one operation per
+ * thread woken, and are run with a <tt>Condition</tt>, whose threads contend
+ * for the lock again when they are woken, and with a <tt>Condition2</tt>,
+ * which moves them straight onto the lock's wait queue. The default of 1000
+ * threads needs <tt>TCB.maxThreads</tt> to be raised above it.
+ *
+ * <p>
+ * The number of iterations is set by <tt>BenchmarkKernel.iterations</tt>.
+ * Each result is printed on a line of its own, as tab-separated fields:
+ *
+ * <pre>
+ * benchmark <i>scheduler</i> <i>primitive</i> <i>operations</i> <i>milliseconds</i> <i>operations per second</i> <i>context switches</i>
+ * </pre>
+ *
+ * <p>
+ * Under a scheduler with tickets (<tt>LotteryScheduler</tt> or
+ * <tt>StrideScheduler</tt>), threads holding 1, 2, 3 and 4 tickets then
+ * yield in turn until they have taken <tt>BenchmarkKernel.shareTurns</tt>
+ * turns between them. The rate of turns is printed as a <tt>share</tt>
+ * benchmark, and the share of each thread on a line of its own. The
+ * <tt>share/lock</tt> benchmark does the same with threads holding 2, 2, 3
+ * and 3 tickets, where the two with 2 tickets also hand a lock back and
+ * forth on each of their turns; a scheduler that charges a thread for
+ * being handed a lock gives them less than their share.
+ *
+ * <pre>
+ * share <i>scheduler</i> <i>benchmark</i> <i>tickets</i> <i>expected share</i> <i>observed share</i> <i>window error</i>
+ * </pre>
+ *
+ * <p>
+ * The window error is the mean difference, in turns, between the turns the
+ * thread took in each window of 100 and the turns its tickets entitle it to.
+ * It measures how evenly the share is spread out over time.
+ *
+ * <p>
+ * Finally, two latencies are measured in simulated ticks. In the
+ * <tt>wakeup</tt> test, <tt>BenchmarkKernel.latencyThreads</tt> threads keep
+ * the CPU busy while another thread repeatedly waits on a semaphore that one
+ * of them signals, and the time the waiting thread takes to run once it has
+ * been signalled is measured <tt>BenchmarkKernel.latencySamples</tt> times.
+ * In the <tt>alarm</tt> test (<tt>alarm/one-shot</tt> if
+ * <tt>Alarm.oneShot</tt> is set), <tt>BenchmarkKernel.alarmThreads</tt>
+ * threads each call <tt>Alarm.waitUntil()</tt>
+ * <tt>BenchmarkKernel.alarmRounds</tt> times, and the time by which each
+ * wakes up late is measured. The <tt>alarm/busy</tt> test repeats it while
+ * <tt>BenchmarkKernel.alarmBusyThreads</tt> threads keep the CPU busy. Each
+ * is summarized on a line of its own:
+ *
+ * <pre>
+ * latency <i>scheduler</i> <i>test</i> <i>threads</i> <i>samples</i> <i>mean</i> <i>median</i> <i>99th percentile</i> <i>maximum</i>
+ * </pre>
+ *
+ * <p>
+ * Other times are host wall-clock times. <tt>bin/nachos-threads-bench</tt> runs
+ * this kernel under each scheduler and collects the results in files.
+ */
+public class BenchmarkKernel extends ThreadedKernel {
+    /**
+     * Allocate a new benchmark kernel.
+     */
+    public BenchmarkKernel() {
+	super();
+    }
+
+    /**
+     * The benchmarks stand in for the self tests, so this method does
+     * nothing.
+     */
+    public void selfTest() {
+    }
+
+    /**
+     * Run each benchmark in turn.
+     */
+    public void run() {
+	int iterations = Config.getInteger("BenchmarkKernel.iterations", 10000);
+
+	measure(new YieldBenchmark(), iterations);
+	measure(new SleepBenchmark(), iterations);
+	measure(new SemaphoreBenchmark(), iterations);
+	measure(new LockBenchmark(), iterations);
+	measure(new ConditionBenchmark(), iterations);
+	measure(new CommunicatorBenchmark(), iterations);
+	measure(new ChannelBenchmark("channel", 0, 1), iterations);
+	measure(new ChannelBenchmark("channel/buffered", 64, 1), iterations);
+	measure(new ChannelBenchmark("channel/bulk", 64, 16), iterations);
+
+	int numWaiters = Config.getInteger("BenchmarkKernel.broadcastWaiters", 1000);
+	int rounds = Config.getInteger("BenchmarkKernel.broadcastRounds", 10);
+	Lock lock = new Lock();
+	measureBroadcast("broadcast/condition", lock, new Condition(lock), null,
+			 numWaiters, rounds);
+	lock = new Lock();
+	measureBroadcast("broadcast/condition2", lock, null, new Condition2(lock),
+			 numWaiters, rounds);
+
+	if (scheduler instanceof LotteryScheduler ||
+	    scheduler instanceof StrideScheduler) {
+	    int turns = Config.getInteger("BenchmarkKernel.shareTurns", 40000);
+	    measureShares("share", new int[] { 1, 2, 3, 4 }, turns, null);
+	    measureShares("share/lock", new int[] { 2, 2, 3, 3 }, turns,
+			  new Lock());
+	}
+
+	measureLatency(Config.getInteger("BenchmarkKernel.latencyThreads", 200),
+		       Config.getInteger("BenchmarkKernel.latencySamples", 50));
+	int alarmThreads = Config.getInteger("BenchmarkKernel.alarmThreads", 100);
+	int alarmRounds = Config.getInteger("BenchmarkKernel.alarmRounds", 20);
+	measureAlarm("alarm", alarmThreads, alarmRounds, 0);
+	measureAlarm("alarm/busy", alarmThreads, alarmRounds,
+		     Config.getInteger("BenchmarkKernel.alarmBusyThreads", 1));
+    }
+
+    private void measure(final Benchmark benchmark, final int iterations) {
+	benchmark.mainThread = KThread.currentThread();
+	benchmark.partnerThread = new KThread(new Runnable() {
+		public void run() { benchmark.partner(iterations); }
+	    });
+	benchmark.partnerThread.setName(benchmark.name);
+
+	long startTime = System.nanoTime();
+	long startSwitches = KThread.getNumSwitches();
+	benchmark.partnerThread.fork();
+	benchmark.main(iterations);
+	benchmark.partnerThread.join();
+
+	printResult(benchmark.name, iterations, startTime, startSwitches);
+    }
+
+    private void printResult(String name, int operations, long startTime,
+			     long startSwitches) {
+	long elapsed = Math.max(1, System.nanoTime() - startTime);
+
+	System.out.println("benchmark\t" + scheduler.getClass().getName() +
+			   "\t" + name + "\t" + operations +
+			   "\t" + (elapsed / 1000000) +
+			   "\t" + (operations * 1000000000L / elapsed) +
+			   "\t" + (KThread.getNumSwitches() - startSwitches));
+    }
+
+    /**
+     * Run the broadcast benchmark with one of <i>condition</i> and
+     * <i>condition2</i>, the other being <tt>null</tt>.
+     */
+    private void measureBroadcast(String name, final Lock lock,
+				  final Condition condition,
+				  final Condition2 condition2,
+				  final int numWaiters, final int rounds) {
+	final Semaphore allAsleep = new Semaphore(0);
+	// the number of threads asleep, and the number of broadcasts so far
+	final int[] numAsleep = { 0 };
+	final int[] generation = { 0 };
+
+	KThread[] threads = new KThread[numWaiters];
+	for (int i=0; i<numWaiters; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			lock.acquire();
+			for (int round=0; round<rounds; round++) {
+			    if (++numAsleep[0] == numWaiters)
+				allAsleep.V();
+
+			    int myGeneration = generation[0];
+			    while (generation[0] == myGeneration) {
+				if (condition2 != null)
+				    condition2.sleep();
+				else
+				    condition.sleep();
+			    }
+
+			    KThread.yield();
+			}
+			lock.release();
+		    }
+		});
+	    threads[i].setName("waiter " + i);
+	}
+
+	long startTime = System.nanoTime();
+	long startSwitches = KThread.getNumSwitches();
+
+	for (int i=0; i<numWaiters; i++)
+	    threads[i].fork();
+
+	for (int round=0; round<rounds; round++) {
+	    allAsleep.P();
+
+	    lock.acquire();
+	    numAsleep[0] = 0;
+	    generation[0]++;
+	    if (condition2 != null)
+		condition2.wakeAll();
+	    else
+		condition.wakeAll();
+	    lock.release();
+	}
+
+	for (int i=0; i<numWaiters; i++)
+	    threads[i].join();
+
+	printResult(name, numWaiters*rounds, startTime, startSwitches);
+    }
+
+    /**
+     * Run the share benchmark with a thread for each element of
+     * <i>tickets</i>. If <i>lock</i> is not <tt>null</tt>, the first two
+     * threads take it around each of their turns, and hold it while they
+     * yield, so that each hands it straight to the other. They take turns
+     * strictly, so they must have the same tickets.
+     */
+    private void measureShares(String benchmark, final int[] tickets,
+			       final int turns, final Lock lock) {
+	// the thread that took each turn
+	final int[] order = new int[turns];
+	final int[] numTaken = new int[1];
+
+	KThread[] threads = new KThread[tickets.length];
+	for (int i=0; i<tickets.length; i++) {
+	    final int which = i;
+	    final boolean locks = (lock != null && i < 2);
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (numTaken[0] < turns) {
+			    if (locks)
+				lock.acquire();
+			    if (numTaken[0] < turns)
+				order[numTaken[0]++] = which;
+			    KThread.yield();
+			    if (locks)
+				lock.release();
+			}
+		    }
+		});
+	    threads[i].setName("share " + tickets[i]);
+	}
+
+	long startTime = System.nanoTime();
+	long startSwitches = KThread.getNumSwitches();
+
+	// fork them all at once, so that none starts early
+	boolean intStatus = Machine.interrupt().disable();
+	for (int i=0; i<threads.length; i++) {
+	    scheduler.setPriority(threads[i], tickets[i]);
+	    threads[i].fork();
+	}
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	printResult(benchmark, turns, startTime, startSwitches);
+	String name = scheduler.getClass().getName();
+
+	int totalTickets = 0;
+	for (int i=0; i<tickets.length; i++)
+	    totalTickets += tickets[i];
+
+	for (int i=0; i<tickets.length; i++) {
+	    double expected = (double) tickets[i] / totalTickets;
+	    int taken = 0, inWindow = 0, numWindows = 0;
+	    double windowError = 0;
+
+	    for (int turn=0; turn<turns; turn++) {
+		if (order[turn] == i) {
+		    taken++;
+		    inWindow++;
+		}
+		if ((turn+1) % shareWindow == 0) {
+		    windowError += Math.abs(inWindow - expected*shareWindow);
+		    inWindow = 0;
+		    numWindows++;
+		}
+	    }
+
+	    System.out.println("share\t" + name + "\t" + benchmark +
+			       "\t" + tickets[i] +
+			       "\t" + round(expected) +
+			       "\t" + round((double) taken / turns) +
+			       "\t" + round(windowError / Math.max(1, numWindows)));
+	}
+    }
+
+    private void measureLatency(int numThreads, final int samples) {
+	final Semaphore signal = new Semaphore(0);
+	final long[] latencies = new long[samples];
+	// when the signal was last given, or -1 while it is wanted
+	final long[] signalTime = { 0 };
+	final boolean[] done = { false };
+
+	KThread waiter = new KThread(new Runnable() {
+		public void run() {
+		    // the first signal is not measured, since the busy
+		    // threads have not all run yet
+		    for (int i=-1; i<samples; i++) {
+			signalTime[0] = -1;
+			signal.P();
+			if (i >= 0) {
+			    latencies[i] =
+				Machine.timer().getTime() - signalTime[0];
+			}
+		    }
+		    done[0] = true;
+		}
+	    });
+	waiter.setName("latency");
+
+	KThread[] threads = new KThread[numThreads];
+	for (int i=0; i<numThreads; i++) {
+	    final boolean signaller = (i == 0);
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (!done[0]) {
+			    if (signaller && signalTime[0] < 0) {
+				signalTime[0] = Machine.timer().getTime();
+				signal.V();
+			    }
+			    // spend a kernel tick, giving the timer a chance
+			    // to preempt this thread
+			    Machine.interrupt().disable();
+			    Machine.interrupt().enable();
+			}
+		    }
+		});
+	    threads[i].setName("busy " + i);
+	}
+
+	boolean intStatus = Machine.interrupt().disable();
+	waiter.fork();
+	for (int i=0; i<numThreads; i++)
+	    threads[i].fork();
+	Machine.interrupt().restore(intStatus);
+
+	waiter.join();
+	for (int i=0; i<numThreads; i++)
+	    threads[i].join();
+
+	printLatency("wakeup", numThreads, latencies);
+    }
+
+    private void measureAlarm(String test, int numThreads, final int rounds,
+			      int numBusy) {
+	final long[] lateness = new long[numThreads*rounds];
+	final int[] numSamples = new int[1];
+	final boolean[] done = { false };
+
+	KThread[] threads = new KThread[numThreads];
+	for (int i=0; i<numThreads; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int round=0; round<rounds; round++) {
+			    long x = 1 + Lib.random(alarmSpread);
+			    long wakeTime = Machine.timer().getTime() + x;
+			    alarm.waitUntil(x);
+			    lateness[numSamples[0]++] =
+				Machine.timer().getTime() - wakeTime;
+			}
+		    }
+		});
+	    threads[i].setName("sleeper " + i);
+	}
+
+	KThread[] busy = new KThread[numBusy];
+	for (int i=0; i<numBusy; i++) {
+	    busy[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (!done[0]) {
+			    Machine.interrupt().disable();
+			    Machine.interrupt().enable();
+			}
+		    }
+		});
+	    busy[i].setName("busy " + i);
+	}
+
+	for (int i=0; i<numThreads; i++)
+	    threads[i].fork();
+	for (int i=0; i<numBusy; i++)
+	    busy[i].fork();
+	for (int i=0; i<numThreads; i++)
+	    threads[i].join();
+	done[0] = true;
+	for (int i=0; i<numBusy; i++)
+	    busy[i].join();
+
+	if (Config.getBoolean("Alarm.oneShot", false))
+	    test += "/one-shot";
+	printLatency(test, numThreads, lateness);
+    }
+
+    private void printLatency(String test, int numThreads, long[] latencies) {
+	Arrays.sort(latencies);
+	long total = 0;
+	for (int i=0; i<latencies.length; i++)
+	    total += latencies[i];
+
+	System.out.println("latency\t" + scheduler.getClass().getName() +
+			   "\t" + test + "\t" + numThreads +
+			   "\t" + latencies.length +
+			   "\t" + total / Math.max(1, latencies.length) +
+			   "\t" + percentile(latencies, 50) +
+			   "\t" + percentile(latencies, 99) +
+			   "\t" + percentile(latencies, 100));
+    }
+
+    /**
+     * Return the smallest value of a sorted array no less than the given
+     * percentage of its values.
+     */
+    private static long percentile(long[] sorted, int percent) {
+	if (sorted.length == 0)
+	    return 0;
+
+	int rank = (sorted.length * percent + 99) / 100;
+	return sorted[Math.max(0, rank-1)];
+    }
+
+    private static double round(double value) {
+	return Math.round(value * 10000) / 10000.0;
+    }
+
+    private static final int shareWindow = 100;
+    /** The longest time the alarm test sleeps for, in ticks. */
+    private static final int alarmSpread = 2000;
+
+    /**
+     * One primitive to measure, as the loops run by the two threads.
+     */
+    private static abstract class Benchmark {
+	Benchmark(String name) {
+	    this.name = name;
+	}
+
+	/** Run the main thread's loop. */
+	abstract void main(int iterations);
+	/** Run the second thread's loop. */
+	abstract void partner(int iterations);
+
+	String name;
+	KThread mainThread, partnerThread;
+    }
+
+    private static class YieldBenchmark extends Benchmark {
+	YieldBenchmark() {
+	    super("yield");
+	}
+
+	void main(int iterations) {
+	    for (int i=0; i<iterations; i++)
+		KThread.yield();
+	}
+
+	void partner(int iterations) {
+	    for (int i=0; i<iterations; i++)
+		KThread.yield();
+	}
+    }
+
+    private static class SleepBenchmark extends Benchmark {
+	SleepBenchmark() {
+	    super("sleep/ready");
+	}
+
+	void main(int iterations) {
+	    // the partner must be asleep before it can be readied
+	    while (!partnerAsleep)
+		KThread.yield();
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    for (int i=0; i<iterations; i++) {
+		partnerThread.ready();
+		KThread.sleep();
+	    }
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	void partner(int iterations) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    partnerAsleep = true;
+	    for (int i=0; i<iterations; i++) {
+		KThread.sleep();
+		mainThread.ready();
+	    }
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	private boolean partnerAsleep = false;
+    }
+
+    private static class SemaphoreBenchmark extends Benchmark {
+	SemaphoreBenchmark() {
+	    super("semaphore");
+	}
+
+	void main(int iterations) {
+	    for (int i=0; i<iterations; i++) {
+		ping.V();
+		pong.P();
+	    }
+	}
+
+	void partner(int iterations) {
+	    for (int i=0; i<iterations; i++) {
+		ping.P();
+		pong.V();
+	    }
+	}
+
+	private Semaphore ping = new Semaphore(0);
+	private Semaphore pong = new Semaphore(0);
+    }
+
+    private static class LockBenchmark extends Benchmark {
+	LockBenchmark() {
+	    super("lock");
+	}
+
+	void main(int iterations) {
+	    partner(iterations);
+	}
+
+	void partner(int iterations) {
+	    // yield while holding the lock, so that the other thread is
+	    // waiting for it when it is released
+	    for (int i=0; i<iterations; i++) {
+		lock.acquire();
+		KThread.yield();
+		lock.release();
+	    }
+	}
+
+	private Lock lock = new Lock();
+    }
+
+    private static class ConditionBenchmark extends Benchmark {
+	ConditionBenchmark() {
+	    super("condition");
+	}
+
+	void main(int iterations) {
+	    takeTurns(0, 1, iterations);
+	}
+
+	void partner(int iterations) {
+	    takeTurns(1, 0, iterations);
+	}
+
+	private void takeTurns(int me, int other, int iterations) {
+	    lock.acquire();
+	    for (int i=0; i<iterations; i++) {
+		while (turn != me)
+		    condition.sleep();
+		turn = other;
+		condition.wake();
+	    }
+	    lock.release();
+	}
+
+	private Lock lock = new Lock();
+	private Condition2 condition = new Condition2(lock);
+	private int turn = 0;
+    }
+
+    private static class CommunicatorBenchmark extends Benchmark {
+	CommunicatorBenchmark() {
+	    super("communicator");
+	}
+
+	void main(int iterations) {
+	    for (int i=0; i<iterations; i++)
+		communicator.speak(i);
+	}
+
+	void partner(int iterations) {
+	    for (int i=0; i<iterations; i++)
+		communicator.listen();
+	}
+
+	private Communicator communicator = new Communicator();
+    }
+
+    private static class ChannelBenchmark extends Benchmark {
+	ChannelBenchmark(String name, int capacity, int batch) {
+	    super(name);
+	    channel = new BufferedChannel(capacity);
+	    this.batch = batch;
+	}
+
+	void main(int iterations) {
+	    int[] words = new int[batch];
+	    for (int i=0; i<iterations; i+=batch) {
+		words[0] = i;
+		channel.speak(words, 0, Math.min(batch, iterations-i));
+	    }
+	}
+
+	void partner(int iterations) {
+	    int[] words = new int[batch];
+	    for (int i=0; i<iterations; i+=batch)
+		channel.listen(words, 0, Math.min(batch, iterations-i));
+	}
+
+	private BufferedChannel channel;
+	private int batch;
+    }
+}
@@ -0,0 +1,273 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+
+/**
+ * A <i>buffered channel</i> passes 32-bit words from speaking threads to
+ * listening threads, in order, through a ring buffer of fixed capacity.
+ *
+ * <p>
+ * A speaker only waits while the buffer is full, and a listener only while
+ * it is empty. When a listener is already waiting, a speaker copies its words
+ * straight to that listener instead of through the buffer, and likewise a
+ * listener copies words straight from a waiting speaker. A channel of
+ * capacity 0 therefore behaves like a <tt>Communicator</tt>: each word is
+ * handed from a speaker to a listener, and neither returns until they have
+ * been paired up.
+ *
+ * <p>
+ * Words can be spoken and listened to in bulk, so that a whole array passes
+ * through the channel with a single context switch instead of one per word.
+ * The words of a bulk <tt>speak()</tt> are never interleaved with those of
+ * another speaker, and a bulk <tt>listen()</tt> waits until it has all the
+ * words it asked for. Waiting speakers and listeners are served in the order
+ * they arrived.
+ *
+ * <p>
+ * Like <tt>Semaphore</tt>, a channel disables interrupts for
+ * synchronization, so it may not be used in interrupt handlers.
+ */
+public class BufferedChannel {
+    /**
+     * Allocate a new buffered channel, with a capacity given by
+     * <tt>BufferedChannel.capacity</tt>, or 0 if that is not set.
+     */
+    public BufferedChannel() {
+	this(Config.getInteger("BufferedChannel.capacity", 0));
+    }
+
+    /**
+     * Allocate a new buffered channel.
+     *
+     * @param	capacity	the number of words the channel can hold with
+     *				no listener waiting; 0 for a channel that
+     *				only hands words from speakers to listeners.
+     */
+    public BufferedChannel(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	buffer = new int[capacity];
+    }
+
+    /**
+     * Return the number of words this channel can hold.
+     *
+     * @return	the capacity of this channel.
+     */
+    public int getCapacity() {
+	return buffer.length;
+    }
+
+    /**
+     * Transfer <i>word</i> to a listener, waiting until there is room for it
+     * in the buffer or a listener takes it.
+     *
+     * @param	word	the integer to transfer.
+     */
+    public void speak(int word) {
+	speak(new int[] { word }, 0, 1);
+    }
+
+    /**
+     * Transfer the words in an array to listeners, in order.
+     *
+     * @param	words	the integers to transfer.
+     */
+    public void speak(int[] words) {
+	speak(words, 0, words.length);
+    }
+
+    /**
+     * Transfer <i>length</i> words to listeners, in order, starting at
+     * <tt>words[offset]</tt>. Does not return until every word is in the
+     * buffer or has been taken by a listener.
+     *
+     * @param	words	the array holding the integers to transfer.
+     * @param	offset	the index of the first integer to transfer.
+     * @param	length	the number of integers to transfer.
+     */
+    public void speak(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset + length <= words.length);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// hand words straight to waiting listeners; if any are waiting, the
+	// buffer is empty
+	while (length > 0 && !listeners.isEmpty()) {
+	    Waiter listener = listeners.peekFirst();
+	    int amount = Math.min(length, listener.length);
+
+	    System.arraycopy(words, offset, listener.words, listener.offset,
+			     amount);
+	    offset += amount;
+	    length -= amount;
+	    listener.transferred(amount);
+
+	    if (listener.length == 0) {
+		listeners.removeFirst();
+		listener.thread.ready();
+	    }
+	}
+
+	// fill the buffer, unless earlier speakers are still waiting
+	if (length > 0 && speakers.isEmpty()) {
+	    int amount = Math.min(length, buffer.length - count);
+	    put(words, offset, amount);
+	    offset += amount;
+	    length -= amount;
+	}
+
+	// wait for listeners to take the rest
+	if (length > 0) {
+	    speakers.addLast(new Waiter(words, offset, length));
+	    KThread.sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wait for a word from a speaker, and return it.
+     *
+     * @return	the integer transferred.
+     */
+    public int listen() {
+	int[] word = new int[1];
+	listen(word, 0, 1);
+	return word[0];
+    }
+
+    /**
+     * Fill an array with words from speakers, in order.
+     *
+     * @param	words	the array to fill.
+     */
+    public void listen(int[] words) {
+	listen(words, 0, words.length);
+    }
+
+    /**
+     * Receive <i>length</i> words from speakers, in order, storing them
+     * starting at <tt>words[offset]</tt>. Does not return until all the
+     * words have been received.
+     *
+     * @param	words	the array in which to store the integers.
+     * @param	offset	the index at which to store the first integer.
+     * @param	length	the number of integers to receive.
+     */
+    public void listen(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset + length <= words.length);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (length > 0 && (count > 0 || !speakers.isEmpty())) {
+	    int amount;
+
+	    if (count > 0) {
+		// the buffered words come before those of waiting speakers
+		amount = Math.min(length, count);
+		take(words, offset, amount);
+	    }
+	    else {
+		// hand words straight from the first waiting speaker
+		Waiter speaker = speakers.peekFirst();
+		amount = Math.min(length, speaker.length);
+
+		System.arraycopy(speaker.words, speaker.offset, words, offset,
+				 amount);
+		speaker.transferred(amount);
+		if (speaker.length == 0) {
+		    speakers.removeFirst();
+		    speaker.thread.ready();
+		}
+	    }
+
+	    offset += amount;
+	    length -= amount;
+	}
+
+	// move the words of waiting speakers into the room just made
+	while (!speakers.isEmpty() && count < buffer.length) {
+	    Waiter speaker = speakers.peekFirst();
+	    int amount = Math.min(speaker.length, buffer.length - count);
+
+	    put(speaker.words, speaker.offset, amount);
+	    speaker.transferred(amount);
+	    if (speaker.length == 0) {
+		speakers.removeFirst();
+		speaker.thread.ready();
+	    }
+	}
+
+	// wait for speakers to supply the rest
+	if (length > 0) {
+	    listeners.addLast(new Waiter(words, offset, length));
+	    KThread.sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Append words to the ring buffer, which must have room for them.
+     */
+    private void put(int[] words, int offset, int amount) {
+	if (amount == 0)
+	    return;
+
+	int tail = (head + count) % buffer.length;
+	int first = Math.min(amount, buffer.length - tail);
+
+	System.arraycopy(words, offset, buffer, tail, first);
+	System.arraycopy(words, offset + first, buffer, 0, amount - first);
+	count += amount;
+    }
+
+    /**
+     * Remove words from the front of the ring buffer, which must hold at
+     * least that many.
+     */
+    private void take(int[] words, int offset, int amount) {
+	int first = Math.min(amount, buffer.length - head);
+
+	System.arraycopy(buffer, head, words, offset, first);
+	System.arraycopy(buffer, 0, words, offset + first, amount - first);
+	head = (head + amount) % buffer.length;
+	count -= amount;
+    }
+
+    /**
+     * A thread waiting to speak or listen, and the part of its array that is
+     * still to be transferred.
+     */
+    private static class Waiter {
+	Waiter(int[] words, int offset, int length) {
+	    this.words = words;
+	    this.offset = offset;
+	    this.length = length;
+	    this.thread = KThread.currentThread();
+	}
+
+	void transferred(int amount) {
+	    offset += amount;
+	    length -= amount;
+	}
+
+	int[] words;
+	int offset, length;
+	KThread thread;
+    }
+
+    private int[] buffer;
+    /** The index of the oldest word in the buffer. */
+    private int head = 0;
+    /** The number of words in the buffer. */
+    private int count = 0;
+
+    private ArrayDeque<Waiter> speakers = new ArrayDeque<Waiter>();
+    private ArrayDeque<Waiter> listeners = new ArrayDeque<Waiter>();
+}
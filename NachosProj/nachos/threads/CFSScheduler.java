@@ -0,0 +1,348 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.TreeSet;
+
+/**
+ * A completely-fair scheduler, which dequeues the thread that has had the
+ * least CPU time for its weight.
+ *
+ * <p>
+ * Each thread has a <i>virtual runtime</i>: the ticks it has spent running,
+ * as counted by <tt>Machine.timer().getTime()</tt> between the moment it is
+ * switched in and the moment it is switched out or starts waiting, scaled
+ * down by its weight. A thread's weight comes from its priority, which ranges
+ * from 0 to 7 like that of <tt>PriorityScheduler</tt>; each step up gives it
+ * 1.25 times the weight, and so 1.25 times the CPU time of a thread one step
+ * below it. The thread dequeued is always the one with the lowest virtual
+ * runtime, and among equal ones the one that has waited longest.
+ *
+ * <p>
+ * Each queue keeps its waiting threads in a balanced tree ordered by virtual
+ * runtime, and keeps track of the virtual runtime of the last thread it
+ * dequeued. A thread starts waiting no earlier than that, so that a thread
+ * which has been asleep cannot claim all the time it missed. A thread that
+ * wakes up rather than gives up the CPU may start up to
+ * <tt>CFSScheduler.wakeupCredit</tt> ticks earlier, so that it is dequeued
+ * ahead of the threads that keep the CPU busy, however many there are.
+ *
+ * <p>
+ * This scheduler does not transfer priority. When the kernel terminates, it
+ * prints the share of the CPU each live thread got, and how long it waited
+ * to run once it was ready, and the same for all the finished threads
+ * together.
+ */
+public class CFSScheduler extends Scheduler {
+    /**
+     * Allocate a new completely-fair scheduler.
+     */
+    public CFSScheduler() {
+	wakeupCredit = Config.getInteger("CFSScheduler.wakeupCredit",
+					 Stats.TimerTicks/2);
+	Lib.assertTrue(wakeupCredit >= 0);
+    }
+
+    /**
+     * Allocate a new completely-fair thread queue.
+     *
+     * @param	transferPriority	ignored; this scheduler does not
+     *					transfer priority.
+     * @return	a new completely-fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Set the priority of a thread, clamped to the range there are weights
+     * for. It changes how fast the thread's virtual runtime grows from now
+     * on.
+     */
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	priority = Math.max(priorityMinimum, Math.min(priorityMaximum, priority));
+
+	ThreadState state = getThreadState(thread);
+	if (thread == KThread.currentThread())
+	    state.charge();
+	state.priority = priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority < priorityMaximum)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return priority < priorityMaximum;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority > priorityMinimum)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return priority > priorityMinimum;
+    }
+
+    /**
+     * Charge the thread being switched out for the time it ran, and the one
+     * being switched in for the time it waited.
+     */
+    public void threadSwitched(KThread previous, KThread next) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState previousState = getThreadState(previous);
+	previousState.charge();
+
+	// a finishing thread has had its last turn; add it to the totals for
+	// finished threads, and forget it
+	if (previousState.finished && threadStates.remove(previousState)) {
+	    finishedTotals.cpuTicks += previousState.cpuTicks;
+	    finishedTotals.waitTicks += previousState.waitTicks;
+	    finishedTotals.maxWait =
+		Math.max(finishedTotals.maxWait, previousState.maxWait);
+	    finishedTotals.numRuns += previousState.numRuns;
+	    numFinished++;
+	}
+
+	ThreadState state = getThreadState(next);
+	long now = Machine.timer().getTime();
+	state.runningSince = now;
+
+	if (state.readySince >= 0) {
+	    long waited = now - state.readySince;
+	    state.waitTicks += waited;
+	    state.maxWait = Math.max(state.maxWait, waited);
+	    state.numRuns++;
+	    state.readySince = -1;
+
+	    totalWait += waited;
+	    maxWait = Math.max(maxWait, waited);
+	    numSwitches++;
+	}
+    }
+
+    public void threadFinished(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	getThreadState(thread).finished = true;
+    }
+
+    /**
+     * Print the CPU time of each live thread, and of the finished threads
+     * together, as a share of all the ticks so far, and the mean and maximum
+     * time it spent ready before it ran.
+     */
+    public void printStatistics() {
+	long now = Machine.timer().getTime();
+	getThreadState(KThread.currentThread()).charge();
+
+	System.out.println("CFS: " + numSwitches + " switches, wait mean " +
+			   totalWait / Math.max(1, numSwitches) + " max " +
+			   maxWait + " ticks");
+
+	for (ThreadState state : threadStates) {
+	    printStatistics("CFS thread " + state.thread + ": priority " +
+			    state.priority, state, now);
+	}
+
+	if (numFinished > 0) {
+	    printStatistics("CFS " + numFinished + " finished threads",
+			    finishedTotals, now);
+	}
+    }
+
+    private void printStatistics(String name, ThreadState state, long now) {
+	long share10000 = state.cpuTicks * 10000 / Math.max(1, now);
+
+	System.out.println(name + ", " + state.cpuTicks +
+			   " ticks, share " + share10000/100 + "." +
+			   (share10000%100 < 10 ? "0" : "") +
+			   share10000%100 + "%, " + state.numRuns +
+			   " runs, wait mean " +
+			   state.waitTicks / Math.max(1, state.numRuns) +
+			   " max " + state.maxWait + " ticks");
+    }
+
+    /**
+     * The default priority for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum priority that a thread can have.
+     */
+    public static final int priorityMinimum = 0;
+    /**
+     * The maximum priority that a thread can have.
+     */
+    public static final int priorityMaximum = 7;
+
+    /**
+     * The weight of each priority. A thread of default priority has a weight
+     * of 1024, and each priority has 1.25 times the weight of the one below.
+     */
+    private static final int[] weights =
+	{ 819, 1024, 1280, 1600, 2000, 2500, 3125, 3906 };
+
+    /**
+     * The virtual runtime a thread of default priority gains per tick. A
+     * thread of weight <i>w</i> gains <tt>2<sup>20</sup>/<i>w</i></tt> per
+     * tick.
+     */
+    private static final long vruntimePerTick = (1 << 20) / 1024;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null) {
+	    ThreadState state = new ThreadState(thread);
+	    thread.schedulingState = state;
+	    threadStates.add(state);
+	}
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the thread with the lowest virtual
+     * runtime.
+     */
+    protected class FairQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    long start = minVruntime;
+
+	    if (thread == KThread.currentThread())
+		state.charge();
+	    else
+		start -= wakeupCredit * vruntimePerTick;
+
+	    state.vruntime = Math.max(state.vruntime, start);
+	    state.arrival = numArrivals++;
+	    state.readySince = Machine.timer().getTime();
+
+	    waiting.add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = waiting.pollFirst();
+	    if (state == null)
+		return null;
+
+	    minVruntime = Math.max(minVruntime, state.vruntime);
+	    return state.thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    Lib.assertTrue(waiting.isEmpty());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (ThreadState state : waiting)
+		System.out.print(" " + state.thread + "@" +
+				 state.vruntime / vruntimePerTick);
+	}
+
+	/**
+	 * The waiting threads. Their virtual runtimes do not change while they
+	 * wait, so the order of the tree stays valid.
+	 */
+	private TreeSet<ThreadState> waiting =
+	    new TreeSet<ThreadState>(new Comparator<ThreadState>() {
+		    public int compare(ThreadState a, ThreadState b) {
+			if (a.vruntime != b.vruntime)
+			    return (a.vruntime < b.vruntime) ? -1 : 1;
+			else if (a.arrival != b.arrival)
+			    return (a.arrival < b.arrival) ? -1 : 1;
+			else
+			    return 0;
+		    }
+		});
+	/** The virtual runtime of the latest thread to be dequeued. */
+	private long minVruntime = 0;
+	private long numArrivals = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its priority, its virtual runtime,
+     * and the time it has spent running and waiting.
+     */
+    protected class ThreadState {
+	ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Charge this thread, which must be running, for the ticks since it
+	 * was last charged.
+	 */
+	void charge() {
+	    long now = Machine.timer().getTime();
+	    long ran = now - runningSince;
+	    runningSince = now;
+
+	    cpuTicks += ran;
+	    vruntime += ran * (1 << 20) / weights[priority];
+	}
+
+	KThread thread;
+	int priority = priorityDefault;
+	/** The virtual runtime, in units of 1/<tt>vruntimePerTick</tt>. */
+	long vruntime = 0;
+	/** The order in which this thread started waiting. */
+	long arrival;
+	/** When this thread was switched in, or last charged. */
+	long runningSince = 0;
+	/** When this thread last started waiting, or -1 if it is not. */
+	long readySince = -1;
+	/** Set once this thread has started to finish. */
+	boolean finished = false;
+
+	long cpuTicks = 0, waitTicks = 0, maxWait = 0, numRuns = 0;
+    }
+
+    private int wakeupCredit;
+
+    /** The threads that have not finished, in order of first use. */
+    private LinkedHashSet<ThreadState> threadStates =
+	new LinkedHashSet<ThreadState>();
+    /** The times of the finished threads, added together. */
+    private ThreadState finishedTotals = new ThreadState(null);
+    private long numFinished = 0;
+    private long numSwitches = 0, totalWait = 0, maxWait = 0;
+}
@@ -38,12 +38,12 @@ public class Communicator
     {
 		Lib.debug(debug, "Beginning of speak method");
 
+		// hold the lock while testing flag, or a thread switch could let the
+		// listener test it too before either of us sets it
+		lock.acquire();
+
 		if (!flag)
 		{
-			if (!lock.isHeldByCurrentThread())
-			{
-				lock.acquire();	
-			}
 			flag = true;
 			Lib.debug(debug, "Speak ready, waiting for listener, going to sleep");
 			condition.sleep();
@@ -58,38 +58,20 @@ public class Communicator
 		}
 
 		Lib.debug(debug, "Word sent, speaker attempting to notify the listener");
-		
-		if (!lock.isHeldByCurrentThread())
-		{
-			lock.acquire();	
-		}
-		
+
 		condition.wake();
 		
 		//if the listener is not complete, wait to exit until listener has received
 		//the word the speaker sent
 		if (!listenerComplete)
 		{
-			if (!lock.isHeldByCurrentThread())
-			{
-				lock.acquire();	
-			}
-			
 			condition.sleep();
 		}
 		
 		//Speaker will now finish and wake the listener so he also can finish
-		if (!lock.isHeldByCurrentThread())
-		{
-			lock.acquire();
-		}
-		
 		condition.wake();
 		
-		if (lock.isHeldByCurrentThread())
-		{
-			lock.release();
-		}	
+		lock.release();
 
 		Lib.debug(debug, "Speaker FINISHED");
     }
@@ -104,22 +86,16 @@ public class Communicator
     {
 		Lib.debug(debug, "Beginning of listen method");
 
+		// hold the lock while testing flag, as in speak()
+		lock.acquire();
+
 		if (flag)
 		{
 			Lib.debug(debug, "Listener ready, proceeding to try to listen to message from speak");
-			
-			if (!lock.isHeldByCurrentThread())
-			{
-				lock.acquire();
-			}
 
 			condition.wake();
 
 			Lib.debug(debug, "listener has called to wake speaker, now going to sleep");
-			if (!lock.isHeldByCurrentThread())
-			{
-				lock.acquire();
-			}
 
 			condition.sleep();
 
@@ -129,35 +105,19 @@ public class Communicator
 		{
 			flag = true;
 			Lib.debug(debug, "Listener ready, waiting for speaker");
-			if (!lock.isHeldByCurrentThread())
-			{
-				lock.acquire();
-			}
 
 			condition.sleep();
 		}
 
 		flag = false;
 		Lib.debug(debug, "Listener received word, waking speaker so he can exit");
-		if (!lock.isHeldByCurrentThread())
-		{
-			lock.acquire();
-		}
 
 		condition.wake();
 		
 		//sleep till speaker has exited
-		if (!lock.isHeldByCurrentThread())
-		{
-			lock.acquire();
-		}
-
 		condition.sleep();
 		
-		if (lock.isHeldByCurrentThread())
-		{
-			lock.release();
-		}
+		lock.release();
 		
 		if (speakerComplete)
 		{
@@ -171,7 +131,6 @@ public class Communicator
 		return message;
 	}
 
-
     private static class CommunicatorTest implements Runnable {
 	CommunicatorTest(Communicator communicator, int type) {
 	    this.communicator = communicator;
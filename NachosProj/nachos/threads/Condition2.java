@@ -8,6 +8,13 @@ import nachos.machine.*;
  * synchronization.
  *
  * <p>
+ * Woken threads are not readied to contend for the lock again. Instead they
+ * are moved straight onto the lock's wait queue (<i>wait morphing</i>), so
+ * that each one only runs once it holds the lock. This way <tt>wakeAll()</tt>
+ * with many threads sleeping does not make each of them run only to block
+ * on the lock again.
+ *
+ * <p>
  * You must implement this.
  *
  * @see	nachos.threads.Condition
@@ -22,6 +29,21 @@ public class Condition2 {
      *				<tt>wake()</tt>, or <tt>wakeAll()</tt>.
      */
     public Condition2(Lock conditionLock)
+    {
+    	this(conditionLock, null);
+    }
+
+    /**
+     * Allocate a new condition variable with a name, under which it is
+     * reported by the <tt>LockProfiler</tt>.
+     *
+     * @param	conditionLock	the lock associated with this condition
+     *				variable.
+     * @param	name		the name of the condition variable, or
+     *				<tt>null</tt> to name it after the code that
+     *				created it.
+     */
+    public Condition2(Lock conditionLock, String name)
     {
     	// # Q2
     	// Allocate a new ThreadQueue, do not transfer priority
@@ -30,6 +52,7 @@ public class Condition2 {
     	waitQ = rr.newThreadQueue(false);
     	//waitQ = ThreadedKernel.scheduler.newThreadQueue(false);
     	this.conditionLock = conditionLock;
+    	profile = LockProfiler.register("Condition2", name);
     }
 
     /**
@@ -42,18 +65,25 @@ public class Condition2 {
     {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		
+		// disable the interrupts to provide atomicity; they must be disabled
+		// before the lock is released, or a thread switch in between could
+		// let another thread call wake() before this one is on the waitQ
+		boolean oldInterrupStatus = Machine.interrupt().disable();
+		long startTime = (profile != null) ? Machine.timer().getTime() : 0;
 		// release the lock which was acquired by the currentThread before calling sleep 
 		conditionLock.release();
-		// disable the interrupts to provide atomicity
-		boolean oldInterrupStatus = Machine.interrupt().disable();
 		// place the current thread into the waitQ, and go to sleep
 		// another thread will call teh queue to wake up one or all
 		// sleeping thread
 		waitQ.waitForAccess(KThread.currentThread());
 		KThread currentThread = KThread.currentThread();
 		currentThread.sleep();
-		// at this point this thread has been wakened
-		conditionLock.acquire();
+		// at this point this thread has been wakened; wake() put it on the
+		// lock's wait queue, so it has been given the lock as well
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+		conditionLock.waitedFor();
+		if (profile != null)
+			profile.acquired(true, Machine.timer().getTime() - startTime);
 		// don't forget to enable interrupts with the old interrupt status
 		Machine.interrupt().restore(oldInterrupStatus);
     }
@@ -76,8 +106,8 @@ public class Condition2 {
 		}
 		else
 		{
-			// wake up!
-			oldestThread.ready();
+			// wake up! it will run once this thread releases the lock
+			conditionLock.waitFor(oldestThread);
 		}
 		// don't forget to enable interrupts with the old interrupt status
 		Machine.interrupt().restore(oldInterrupStatus);
@@ -96,8 +126,8 @@ public class Condition2 {
 		KThread oldestThread = null;
 		while( (oldestThread = waitQ.nextThread()) != null)
 		{
-			// wake up!
-			oldestThread.ready();
+			// wake up! each will run once it is given the lock
+			conditionLock.waitFor(oldestThread);
 		}
 		// don't forget to enable interrupts with the old interrupt status
 		Machine.interrupt().restore(oldInterrupStatus);
@@ -199,5 +229,7 @@ public class Condition2 {
     private RoundRobinScheduler rr;
     private ThreadQueue waitQ;
     private Lock conditionLock;
+    // where this condition variable's use is recorded, or null if it is not
+    private LockProfiler.Profile profile;
     private static final char dbgThread = 't';
 }
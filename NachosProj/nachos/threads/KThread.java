@@ -38,6 +38,16 @@ public class KThread {
         return currentThread;
     }
 
+    /**
+     * Get the number of context switches from one thread to another so far.
+     * A thread that yields and is chosen to run again is not counted.
+     *
+     * @return  the number of context switches.
+     */
+    public static long getNumSwitches() {
+        return numSwitches;
+    }
+
     /**
      * Allocate a new <tt>KThread</tt>. If this is the first <tt>KThread</tt>,
      * create an idle thread as well.
@@ -198,6 +208,7 @@ public class KThread {
 	        Lib.assertTrue(toBeDestroyed == null);
 	        toBeDestroyed = currentThread;
 	        currentThread.status = statusFinished;
+	        ThreadedKernel.scheduler.threadFinished(currentThread);
 	        sleep();
         }
     }
@@ -301,10 +312,18 @@ public class KThread {
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     *
+     * <p>
+     * Unless <tt>KThread.idleFastForward</tt> is <tt>false</tt>, the idle
+     * thread skips straight to the last kernel tick before the next interrupt
+     * instead of yielding to itself once per tick. Simulated time advances
+     * by the same number of kernel ticks either way.
      */
     private static void createIdleThread() {
         Lib.assertTrue(idleThread == null);
 
+        idleFastForward = Config.getBoolean("KThread.idleFastForward", true);
+
         idleThread = new KThread(new Runnable() {
             public void run() { while (true) yield(); }
         });
@@ -321,8 +340,14 @@ public class KThread {
      */
     private static void runNextThread() {
         KThread nextThread = readyQueue.nextThread();
-        if (nextThread == null)
+        if (nextThread == null) {
+            // only an interrupt can make another thread ready, so the idle
+            // thread may as well skip the ticks before the next one
+            if (currentThread == idleThread && idleFastForward)
+                Machine.interrupt().skipIdleTicks();
+            
             nextThread = idleThread;
+        }
 
         nextThread.run();
     }
@@ -357,6 +382,10 @@ public class KThread {
         Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
                   + " to: " + toString());
 
+        ThreadedKernel.scheduler.threadSwitched(currentThread, this);
+        if (currentThread != this)
+            numSwitches++;
+
         currentThread = this;
 
         tcb.contextSwitch();
@@ -481,7 +510,10 @@ public class KThread {
         //Communicator.selfTest();
 
         Lib.debug(dbgThread,"#Starting the priority scheduler test");
-        //PriorityScheduler.selfTest();
+        PriorityScheduler.selfTest();
+
+        Lib.debug(dbgThread, "# Starting ReadWriteLock test");
+        ReadWriteLock.selfTest();
 
 
         Lib.debug(dbgThread, "# Starting Boat test");
@@ -531,6 +563,9 @@ public class KThread {
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+    private static long numSwitches = 0;
+    /** True if the idle thread skips ticks in which nothing can happen. */
+    private static boolean idleFastForward = false;
 
     // # Q1
     public Semaphore threadDoneSignal;
@@ -24,6 +24,18 @@ public class Lock {
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	this(null);
+    }
+
+    /**
+     * Allocate a new lock with a name, under which it is reported by the
+     * <tt>LockProfiler</tt>. The lock will initially be <i>free</i>.
+     *
+     * @param	name	the name of the lock, or <tt>null</tt> to name it
+     *			after the code that created it.
+     */
+    public Lock(String name) {
+	profile = LockProfiler.register("Lock", name);
     }
 
     /**
@@ -35,14 +47,23 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = KThread.currentThread();
+	long startTime = (profile != null) ? Machine.timer().getTime() : 0;
 
 	if (lockHolder != null) {
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
+
+	    if (profile != null)
+		profile.acquired(true, Machine.timer().getTime() - startTime);
 	}
 	else {
 	    waitQueue.acquire(thread);
 	    lockHolder = thread;
+
+	    if (profile != null) {
+		profile.acquired(false, 0);
+		holdStart = startTime;
+	    }
 	}
 
 	Lib.assertTrue(lockHolder == thread);
@@ -58,12 +79,46 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
+	if (profile != null) {
+	    long time = Machine.timer().getTime();
+	    profile.released(time - holdStart);
+	    // the next holder, if any, holds the lock from now on
+	    holdStart = time;
+	}
+
 	if ((lockHolder = waitQueue.nextThread()) != null)
 	    lockHolder.ready();
 	
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Make a sleeping thread wait for this lock, which the current thread
+     * holds, as if it had called <tt>acquire()</tt>. The thread is readied
+     * once the lock has been passed to it. <tt>Condition2</tt> uses this to
+     * move the threads it wakes straight onto the wait queue of its lock.
+     *
+     * @param	thread	the sleeping thread.
+     */
+    void waitFor(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(isHeldByCurrentThread());
+
+	waitQueue.waitForAccess(thread);
+    }
+
+    /**
+     * Record that the current thread, which was made to wait by
+     * <tt>waitFor()</tt>, has been given this lock. Called by
+     * <tt>Condition2</tt> with interrupts disabled.
+     */
+    void waitedFor() {
+	Lib.assertTrue(isHeldByCurrentThread());
+
+	if (profile != null)
+	    profile.acquired(false, 0);
+    }
+
     /**
      * Test if the current thread holds this lock.
      *
@@ -74,6 +129,10 @@ public class Lock {
     }
 
     private KThread lockHolder = null;
+    /** Where this lock's use is recorded, or <tt>null</tt> if it is not. */
+    private LockProfiler.Profile profile;
+    /** When the current holder was given this lock. */
+    private long holdStart = 0;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
 }
@@ -0,0 +1,239 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Records how contended each <tt>Lock</tt>, <tt>Semaphore</tt> and
+ * <tt>Condition2</tt> is, and prints a report when the kernel terminates.
+ *
+ * <p>
+ * Profiling is off unless <tt>LockProfiler.enabled</tt> is <tt>true</tt>.
+ * When it is off, <tt>register()</tt> returns <tt>null</tt>, and a
+ * synchronization object with no profile skips all bookkeeping, so the only
+ * cost is one test of a field on each operation.
+ *
+ * <p>
+ * Objects are grouped by kind and name, so that, for example, the locks of
+ * every process can share a single profile. An object created without a
+ * name is named after the place in the code that created it. For each
+ * profile the report gives the number of acquires, how many of them had to
+ * wait, the ticks spent waiting and, for locks, the ticks the lock was held,
+ * as counted by <tt>Machine.timer().getTime()</tt>. It also lists the
+ * <tt>LockProfiler.topWaiters</tt> threads that waited longest, with the
+ * longest single wait of each.
+ *
+ * <p>
+ * For a semaphore, an acquire is a call to <tt>P()</tt>, which has to wait
+ * if the value is 0. For a condition variable, an acquire is a call to
+ * <tt>sleep()</tt>, which always waits, until it is woken up and has the lock
+ * back. A thread that <tt>Condition2</tt> hands the lock to counts as an
+ * uncontended acquire of the lock, since its wait is reported for the
+ * condition variable.
+ */
+public class LockProfiler {
+    private LockProfiler() {
+    }
+
+    /**
+     * Return the profile for a synchronization object, creating it if no
+     * object of the same kind and name has been registered yet.
+     *
+     * @param	kind	the kind of object, such as <tt>"Lock"</tt>.
+     * @param	name	the name of the object, or <tt>null</tt> to name it
+     *			after the code that created it.
+     * @return	the profile to record the object's use in, or <tt>null</tt>
+     *		if profiling is off.
+     */
+    public static Profile register(String kind, String name) {
+	if (!enabled)
+	    return null;
+
+	if (name == null)
+	    name = creator();
+
+	String key = kind + " " + name;
+	Profile profile = profiles.get(key);
+	if (profile == null) {
+	    profile = new Profile(kind, name);
+	    profiles.put(key, profile);
+	}
+
+	return profile;
+    }
+
+    /**
+     * Test if profiling is on.
+     *
+     * @return	<tt>true</tt> if synchronization objects are being profiled.
+     */
+    public static boolean isEnabled() {
+	return enabled;
+    }
+
+    /**
+     * Print a line for each profile that was used, the most waited-for
+     * first, followed by its longest waits. Prints nothing if profiling is
+     * off. Called when the kernel terminates.
+     */
+    public static void print() {
+	if (!enabled)
+	    return;
+
+	ArrayList<Profile> used = new ArrayList<Profile>();
+	for (Profile profile : profiles.values()) {
+	    if (profile.numAcquires > 0)
+		used.add(profile);
+	}
+
+	Collections.sort(used, new Comparator<Profile>() {
+		public int compare(Profile a, Profile b) {
+		    if (a.waitTicks != b.waitTicks)
+			return (a.waitTicks > b.waitTicks) ? -1 : 1;
+		    else
+			return a.toString().compareTo(b.toString());
+		}
+	    });
+
+	System.out.println("Lock contention: " + used.size() + " of " +
+			   profiles.size() + " objects used");
+
+	for (Profile profile : used) {
+	    System.out.print("  " + profile + ": acquires " +
+			     profile.numAcquires + ", contended " +
+			     profile.numContended + ", wait " +
+			     profile.waitTicks + " max " + profile.maxWait);
+	    if (profile.numHeld > 0) {
+		System.out.print(", hold " + profile.holdTicks + " max " +
+				 profile.maxHold);
+	    }
+	    System.out.println(" ticks");
+
+	    for (int i=0; i<profile.numTop; i++) {
+		System.out.println("    waited " + profile.topWaits[i] +
+				   " ticks: " + profile.topWaiters[i]);
+	    }
+	}
+    }
+
+    /**
+     * Return the class, method and line that created the synchronization
+     * object being registered: the first caller outside the
+     * synchronization classes.
+     */
+    private static String creator() {
+	StackTraceElement[] stack = new Throwable().getStackTrace();
+
+	for (StackTraceElement frame : stack) {
+	    String className = frame.getClassName();
+	    if (!className.equals(LockProfiler.class.getName()) &&
+		!className.equals(Lock.class.getName()) &&
+		!className.equals(Semaphore.class.getName()) &&
+		!className.equals(Condition2.class.getName())) {
+		return className + "." + frame.getMethodName() + ":" +
+		    frame.getLineNumber();
+	    }
+	}
+
+	return "unknown";
+    }
+
+    /**
+     * The use of one or more synchronization objects of the same kind and
+     * name.
+     */
+    public static class Profile {
+	Profile(String kind, String name) {
+	    this.kind = kind;
+	    this.name = name;
+
+	    topWaits = new long[numTopWaiters];
+	    topWaiters = new KThread[numTopWaiters];
+	}
+
+	/**
+	 * Record an acquire by the current thread.
+	 *
+	 * @param	contended	<tt>true</tt> if the thread had to wait.
+	 * @param	waited		the ticks it waited.
+	 */
+	void acquired(boolean contended, long waited) {
+	    numAcquires++;
+	    if (!contended)
+		return;
+
+	    numContended++;
+	    waitTicks += waited;
+	    maxWait = Math.max(maxWait, waited);
+
+	    // keep the longest wait of each of the longest waiters, longest
+	    // first
+	    KThread waiter = KThread.currentThread();
+	    int i = 0;
+	    while (i < numTop && topWaiters[i] != waiter)
+		i++;
+
+	    if (i < numTop) {
+		if (waited <= topWaits[i])
+		    return;
+	    }
+	    else if (numTop < topWaits.length) {
+		numTop++;
+	    }
+	    else if (numTop > 0 && waited > topWaits[numTop-1]) {
+		i = numTop-1;
+	    }
+	    else {
+		return;
+	    }
+
+	    for (; i > 0 && topWaits[i-1] < waited; i--) {
+		topWaits[i] = topWaits[i-1];
+		topWaiters[i] = topWaiters[i-1];
+	    }
+	    topWaits[i] = waited;
+	    topWaiters[i] = waiter;
+	}
+
+	/**
+	 * Record a lock being released after being held for some ticks.
+	 *
+	 * @param	held	the ticks the lock was held.
+	 */
+	void released(long held) {
+	    numHeld++;
+	    holdTicks += held;
+	    maxHold = Math.max(maxHold, held);
+	}
+
+	public String toString() {
+	    return kind + " " + name;
+	}
+
+	private String kind, name;
+
+	private long numAcquires = 0, numContended = 0;
+	private long waitTicks = 0, maxWait = 0;
+	private long numHeld = 0, holdTicks = 0, maxHold = 0;
+
+	/**
+	 * The longest wait of each of the threads that waited longest, longest
+	 * first.
+	 */
+	private long[] topWaits;
+	private KThread[] topWaiters;
+	private int numTop = 0;
+    }
+
+    private static final boolean enabled =
+	Config.getBoolean("LockProfiler.enabled", false);
+    private static final int numTopWaiters =
+	Math.max(0, Config.getInteger("LockProfiler.topWaiters", 3));
+
+    private static HashMap<String, Profile> profiles =
+	new HashMap<String, Profile>();
+}
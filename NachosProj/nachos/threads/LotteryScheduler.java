@@ -4,10 +4,7 @@ import nachos.machine.*;
 import nachos.threads.PriorityScheduler.PriorityQueue;
 import nachos.threads.PriorityScheduler.ThreadState;
 
-import java.util.LinkedList;
-import java.util.ListIterator;
 import java.util.NavigableSet;
-import java.util.Random;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.HashSet;
@@ -299,20 +296,17 @@ public class LotteryScheduler extends PriorityScheduler {
 			Lib.assertTrue(Machine.interrupt().disabled());
 			// runningThread is the thread that is owns the current resource
 			// since it has finished the nextThread will get the
-			// resource and will start to run
+			// resource and will start to run; the old owner stops
+			// owning it, and loses the tickets donated through it
 			if(runningThread != null)
 			{
-				LotteryThreadState state = (LotteryThreadState) runningThread;
-				// the old owner of this queue stops owning it, thus we need
-				// to clear its donation bucket
-				state.donationHat.clear();
-				runningThread = null;
+				runningThread.release(this);
 			}
 		    // assign a new owner to this queue
 		    ThreadState nThread = pickNextThread();
 		    if(nThread != null)
 		    {
-		    	lotteryQ.remove(nThread);
+		    	leave((LotteryThreadState) nThread);
 		    	nThread.acquire(this);
 		    	return nThread.thread;
 		    }
@@ -329,7 +323,7 @@ public class LotteryScheduler extends PriorityScheduler {
 		protected ThreadState pickNextThread()
 		{
 			// call draw() to perform a lottery of all waiting threads
-			if(lotteryQ.isEmpty())
+			if(numWaiting == 0)
 			{
 				return null;
 			}
@@ -341,43 +335,161 @@ public class LotteryScheduler extends PriorityScheduler {
 		 * draw
 		 * Draw a ticket from all the waiting threads and return the winner
 		 * Here is how the draw works:
-		 * A number is drawn  between 1 and sum(i) where i is all the **effective** priorities
-		 * (this is the total number of tickets held by all waiting threads + any donations)
-		 * After the number was drawn, we return the winning thread holding the 
-		 * winner ticket
+		 * A number is drawn between 0 and sum(i) - 1 where i is all the
+		 * **effective** priorities (this is the total number of tickets held
+		 * by all waiting threads + any donations)
+		 * Each waiting thread has a slot, and holds the tickets numbered from
+		 * the sum of the tickets in the slots before it. The sums are kept in
+		 * a Fenwick tree, so the winner is found by descending the tree,
+		 * in O(log n) steps, without visiting the other waiting threads.
 		 */
-		
 		private LotteryThreadState draw()
 		{
-			int sumPriorities = 0;
-			
-			ListIterator<LotteryThreadState> iter = lotteryQ.listIterator();
-			while(iter.hasNext())
+			long winner;
+			if(totalTickets <= Integer.MAX_VALUE)
+				winner = Lib.random((int) totalTickets);
+			else
+				winner = (long) (Lib.random() * totalTickets);
+
+			// find the slot holding the winning ticket: the last position
+			// whose prefix sum does not exceed the winning number
+			int pos = 0;
+			for(int step = Integer.highestOneBit(holders.length); step > 0; step >>= 1)
+			{
+				if(pos + step <= holders.length && tree[pos + step] <= winner)
+				{
+					pos += step;
+					winner -= tree[pos];
+				}
+			}
+			// thread with winning ticket jumps ecstatically!!
+			return holders[pos];
+		}
+
+		/**
+		 * Add a waiting thread to the lottery, in a free slot.
+		 */
+		void enter(LotteryThreadState state)
+		{
+			if(numFree == 0)
+			{
+				grow();
+			}
+			int slot = freeSlots[--numFree];
+			state.slot = slot;
+			holders[slot] = state;
+			weights[slot] = state.tickets;
+			addToTree(slot, state.tickets);
+			numWaiting++;
+
+			// # HW2 Q4
+			// donate my priority to the thread currently holding the queue
+			if(transferPriority)
+			{
+				donate(state.priority);
+			}
+		}
+
+		/**
+		 * Remove a waiting thread from the lottery, freeing its slot.
+		 */
+		void leave(LotteryThreadState state)
+		{
+			int slot = state.slot;
+			addToTree(slot, -weights[slot]);
+			holders[slot] = null;
+			weights[slot] = 0;
+			freeSlots[numFree++] = slot;
+			numWaiting--;
+
+			state.waitingOn = null;
+			if(transferPriority)
+			{
+				donate(-state.priority);
+			}
+		}
+
+		/**
+		 * Update the tickets of a waiting thread after they changed.
+		 */
+		void ticketsChanged(LotteryThreadState state)
+		{
+			int slot = state.slot;
+			addToTree(slot, state.tickets - weights[slot]);
+			weights[slot] = state.tickets;
+		}
+
+		/**
+		 * Change the number of tickets the waiting threads donate to the
+		 * owner of this queue.
+		 */
+		void donate(long delta)
+		{
+			donatedTickets += delta;
+			if(runningThread != null)
+			{
+				runningThread.updateEffectivePriority();
+			}
+		}
+
+		private void addToTree(int slot, long delta)
+		{
+			totalTickets += delta;
+			for(int i = slot + 1; i <= holders.length; i += i & -i)
 			{
-				LotteryThreadState state = iter.next();
-				sumPriorities += state.getEffectivePriority();
+				tree[i] += delta;
 			}
-			// generate a random number between 1 and sumPriorities
-			Random generator = new Random();
-			int winner = generator.nextInt(sumPriorities); // 0 based
-			winner++;
-			// find out which thread is holding the winning ticket
-			int lowerBound = 1;
-			iter = lotteryQ.listIterator();
-			while(iter.hasNext())
+		}
+
+		/**
+		 * Double the number of slots, and rebuild the tree over the larger
+		 * array in linear time.
+		 */
+		private void grow()
+		{
+			int oldLength = holders.length;
+			int length = Math.max(4, oldLength * 2);
+
+			LotteryThreadState[] newHolders = new LotteryThreadState[length];
+			System.arraycopy(holders, 0, newHolders, 0, oldLength);
+			holders = newHolders;
+
+			long[] newWeights = new long[length];
+			System.arraycopy(weights, 0, newWeights, 0, oldLength);
+			weights = newWeights;
+
+			tree = new long[length + 1];
+			for(int i = 1; i <= length; i++)
 			{
-				LotteryThreadState state = iter.next();
-				int upperBound = lowerBound + state.getEffectivePriority();
-				if(winner >= lowerBound && winner < upperBound)
+				tree[i] += weights[i - 1];
+				int parent = i + (i & -i);
+				if(parent <= length)
 				{
-					// thread with winning ticket jumps ecstatically!!
-					return state;
+					tree[parent] += tree[i];
 				}
-				lowerBound = upperBound;
 			}
-			return null;
+
+			// the new slots are all free; hand out the lowest first
+			freeSlots = new int[length];
+			for(int slot = length - 1; slot >= oldLength; slot--)
+			{
+				freeSlots[numFree++] = slot;
+			}
 		}
-		LinkedList<LotteryThreadState> lotteryQ = new LinkedList<LotteryThreadState>();
+
+		// # HW2 Q4
+		// holders[s] is the thread waiting in slot s, with weights[s]
+		// tickets; tree is the Fenwick tree over weights, indexed from 1
+		private LotteryThreadState[] holders = new LotteryThreadState[0];
+		private long[] weights = new long[0];
+		private long[] tree = new long[1];
+		private int[] freeSlots = new int[0];
+		private int numFree = 0;
+		private int numWaiting = 0;
+		private long totalTickets = 0;
+		// the sum of the priorities of the waiting threads, which is
+		// donated to the owner when this queue transfers priority
+		long donatedTickets = 0;
     }
     
     
@@ -395,42 +507,66 @@ public class LotteryScheduler extends PriorityScheduler {
 		
 		// # HW2 Q4
 		// The effective priority of a thread is how many
-		// tickets it holds + any tickets from other waiting threads
+		// tickets it holds + any tickets from other waiting threads.
+		// It is kept in tickets by updateEffectivePriority(), and
+		// is capped here to fit an int
 		public int getEffectivePriority()
 		{
-			int donation = 0;
-			if(donationHat.size() > 0)
+		    return (int) Math.min(tickets, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * Recompute the tickets of this thread: its own, and those donated
+		 * through the queues it owns. If it is waiting, the lottery it is
+		 * waiting in is updated.
+		 */
+		void updateEffectivePriority()
+		{
+			long newTickets = priority;
+			for(int i = 0; i < owned.size(); i++)
 			{
-				// take of my hat, iterate over all threads waiting 
-				// on the priority Q and collect all the donations
-				ListIterator<LotteryThreadState> iter = donationHat.listIterator();
-				while(iter.hasNext())
-				{
-					LotteryThreadState state = iter.next();
-					donation += state.priority;
-				}
+				newTickets += ((LotteryPriorityQueue) owned.get(i)).donatedTickets;
+			}
+
+			if(newTickets == tickets)
+			{
+				return;
+			}
+			tickets = newTickets;
+
+			if(waitingOn != null)
+			{
+				((LotteryPriorityQueue) waitingOn).ticketsChanged(this);
+			}
+		}
+
+		public void setPriority(int priority)
+		{
+			int oldPriority = this.priority;
+			super.setPriority(priority);
+
+			// a waiting thread donates its priority, so the owner of the
+			// queue it is waiting on has to be told of the change
+			if(waitingOn != null && waitingOn.transferPriority)
+			{
+				((LotteryPriorityQueue) waitingOn).donate(this.priority - oldPriority);
 			}
-		    return priority + donation;
 		}
 		
 		public void waitForAccess(PriorityQueue waitQueue)
 		{
-			getEffectivePriority();
-			LotteryPriorityQueue q = (LotteryPriorityQueue) waitQueue;
+			Lib.assertTrue(waitingOn == null);
+			waitingOn = waitQueue;
 			// # HW2 Q4 add myself to the LotteryPriorityQueue 
-			q.lotteryQ.add(this);
-			
-			// # HW2 Q4
-	    	// donate my priority to the thread currently holding the queue
-	    	// - done by adding myself to listOfWaitingThreads of the queue owner
-		    if(waitQueue.transferPriority)
-		    {
-		    	LotteryThreadState state = (LotteryThreadState) waitQueue.runningThread;
-		    	state.donationHat.add(this);
-		    }
+			((LotteryPriorityQueue) waitQueue).enter(this);
 		}
 		
-		public LinkedList<LotteryThreadState> donationHat = new LinkedList<LotteryThreadState>();
+		// these are set by setPriority() from the ThreadState constructor,
+		// so they must not have initializers, which would run afterwards
+		/** The tickets of this thread, including donations. */
+		long tickets;
+		/** The slot this thread has in the lottery it is waiting in. */
+		int slot;
     }
     
 }
@@ -0,0 +1,286 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Threads are kept on one of <tt>MLFQScheduler.levels</tt> levels, level 0
+ * being the highest, and the thread dequeued is always the one that has
+ * waited longest on the highest non-empty level. A thread on level <i>k</i>
+ * may run for a quantum of <tt>MLFQScheduler.quantum</tt> &times;
+ * 2<sup><i>k</i></sup> timer interrupts before it is moved down a level, so
+ * threads that keep the CPU busy sink, and run less often but for longer.
+ * Until its quantum is used up, a thread interrupted by the timer goes back to
+ * the head of its level, so that it is only preempted by threads on higher
+ * levels. Yielding does not restart the quantum.
+ *
+ * <p>
+ * A thread that blocks on a device, such as the console or the network, is
+ * moved back to level 0, since it is likely to be interactive. Every
+ * <tt>MLFQScheduler.boostInterval</tt> timer interrupts, every thread is
+ * moved back to level 0, so that threads on low levels do not starve.
+ *
+ * <p>
+ * This scheduler does not transfer priority. When the kernel terminates, it
+ * prints statistics on the threads that entered each level's queues.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new multi-level feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+	numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+	quantum = Config.getInteger("MLFQScheduler.quantum", 1);
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 100);
+
+	Lib.assertTrue(numLevels >= 1 && numLevels <= 31);
+	Lib.assertTrue(quantum >= 1 && boostInterval >= 1);
+
+	numEnqueued = new long[numLevels];
+	totalLength = new long[numLevels];
+	maxLength = new int[numLevels];
+	numDemoted = new long[numLevels];
+    }
+
+    /**
+     * Allocate a new multi-level feedback queue.
+     *
+     * @param	transferPriority	ignored; this scheduler does not
+     *					transfer priority.
+     * @return	a new multi-level feedback queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FeedbackQueue();
+    }
+
+    /**
+     * Return the priority of a thread: <tt>levels-1</tt> on level 0, down to
+     * 0 on the lowest level.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return numLevels-1 - getThreadState(thread).getLevel();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Move a thread to the level for the given priority, as returned by
+     * <tt>getPriority()</tt>, clamped to the levels there are. It takes
+     * effect the next time the thread waits.
+     */
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	priority = Math.max(0, Math.min(numLevels-1, priority));
+
+	ThreadState state = getThreadState(thread);
+	state.level = numLevels-1 - priority;
+	state.ticksUsed = 0;
+    }
+
+    /**
+     * Charge the current thread for a timer interrupt, and move it down a
+     * level if it has used up its quantum. Start a new boost period when it
+     * is time.
+     */
+    public void timerTick() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (++numTicks % boostInterval == 0)
+	    epoch++;
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	state.getLevel();
+
+	if (++state.ticksUsed >= (quantum << state.level)) {
+	    if (state.level < numLevels-1) {
+		numDemoted[state.level]++;
+		state.level++;
+	    }
+	    state.ticksUsed = 0;
+	}
+	else {
+	    state.resume = true;
+	}
+    }
+
+    /**
+     * Move the current thread, which is about to block on a device, to
+     * level 0.
+     */
+    public void waitingForIO() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	if (state.getLevel() != 0)
+	    numPromoted++;
+	state.level = 0;
+	state.ticksUsed = 0;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Print, for each level, the number of threads that entered its queues,
+     * their mean and maximum length at the time, and the number of threads
+     * moved down from it.
+     */
+    public void printStatistics() {
+	System.out.println("MLFQ: " + numTicks + " timer interrupts, " +
+			   epoch + " boosts, " + numPromoted +
+			   " promotions for I/O");
+
+	for (int level=0; level<numLevels; level++) {
+	    long meanLength100 = (numEnqueued[level] == 0) ? 0 :
+		totalLength[level] * 100 / numEnqueued[level];
+
+	    System.out.println("MLFQ level " + level + ": " +
+			       numEnqueued[level] + " enqueued, length mean " +
+			       meanLength100/100 + "." +
+			       (meanLength100%100 < 10 ? "0" : "") +
+			       meanLength100%100 + " max " + maxLength[level] +
+			       ", " + numDemoted[level] + " demoted");
+	}
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState();
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with a FIFO for each level.
+     */
+    protected class FeedbackQueue extends ThreadQueue {
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	FeedbackQueue() {
+	    fifos = new ArrayDeque[numLevels];
+	    for (int level=0; level<numLevels; level++)
+		fifos[level] = new ArrayDeque<KThread>();
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    int level = state.getLevel();
+
+	    // a thread interrupted by the timer goes on with its quantum
+	    if (state.resume)
+		fifos[level].addFirst(thread);
+	    else
+		fifos[level].addLast(thread);
+	    state.resume = false;
+	    nonEmpty |= 1 << level;
+
+	    int length = fifos[level].size();
+	    numEnqueued[level]++;
+	    totalLength[level] += length;
+	    maxLength[level] = Math.max(maxLength[level], length);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (nonEmpty == 0)
+		return null;
+
+	    if (queueEpoch != epoch)
+		boost();
+
+	    int level = Integer.numberOfTrailingZeros(nonEmpty);
+	    KThread thread = fifos[level].removeFirst();
+	    if (fifos[level].isEmpty())
+		nonEmpty &= ~(1 << level);
+
+	    return thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int level=0; level<numLevels; level++) {
+		System.out.print(" " + level + ":");
+		for (KThread thread : fifos[level])
+		    System.out.print(" " + thread);
+	    }
+	}
+
+	/**
+	 * Move every waiting thread to level 0, highest levels first, keeping
+	 * their order within each level.
+	 */
+	private void boost() {
+	    queueEpoch = epoch;
+
+	    for (int level=1; level<numLevels; level++) {
+		while (!fifos[level].isEmpty())
+		    fifos[0].addLast(fifos[level].removeFirst());
+	    }
+	    if (nonEmpty != 0)
+		nonEmpty = 1;
+	}
+
+	private ArrayDeque<KThread>[] fifos;
+	private int nonEmpty = 0;
+	private long queueEpoch = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, and how much of its
+     * quantum it has used.
+     */
+    protected class ThreadState {
+	/**
+	 * Return the level of the associated thread, first moving it to level
+	 * 0 if there has been a boost since it was last looked at.
+	 */
+	int getLevel() {
+	    if (stateEpoch != epoch) {
+		stateEpoch = epoch;
+		level = 0;
+		ticksUsed = 0;
+	    }
+	    return level;
+	}
+
+	/** The level of the associated thread. */
+	int level = 0;
+	/** The timer interrupts charged to its current quantum. */
+	int ticksUsed = 0;
+	/** Whether it should go back to the head of its level. */
+	boolean resume = false;
+	/** The boost period in which the level was last checked. */
+	long stateEpoch = epoch;
+    }
+
+    private int numLevels, quantum, boostInterval;
+
+    /** The number of boost periods that have begun. */
+    private long epoch = 0;
+    private long numTicks = 0;
+
+    private long[] numEnqueued, totalLength, numDemoted;
+    private int[] maxLength;
+    private long numPromoted = 0;
+}
@@ -3,6 +3,7 @@ package nachos.threads;
 import nachos.machine.*;
 
 import java.util.TreeMap;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Vector;
@@ -143,6 +144,11 @@ public class PriorityScheduler extends Scheduler {
     // # Q5 Self test
     public static void selfTest()
     {
+    	// the tests rely on the priorities set here, which only this
+    	// scheduler keeps to (the lottery scheduler draws among them)
+    	if (ThreadedKernel.scheduler.getClass() != PriorityScheduler.class)
+    		return;
+    	
     	// Test 1 - We have 3 threads, low, med and high
     	// high runs and waits for med to release a sema4
     	// once the sema4 is released, when both high and low are
@@ -188,6 +194,36 @@ public class PriorityScheduler extends Scheduler {
 		t1.join();
 		t2.join();
 		t3.join();
+		
+		// Test 3 - waiters keep their turn
+		// w1, w2, w3 wait in that order for a lock held by this thread.
+		// w1 is raised above the others and dropped back again while it
+		// waits; it must still get the lock first
+		Lock lock = new Lock();
+		int[] order = new int[3];
+		int[] acquired = new int[1];
+		KThread[] waiters = new KThread[3];
+		
+		lock.acquire();
+		for (int i = 0; i < 3; ++i)
+		{
+			waiters[i] = new KThread(new Waiter(lock, i, order, acquired))
+				.setName("W" + (i+1));
+			waiters[i].fork();
+		}
+		KThread.yield();
+		
+		oldInterrupStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(waiters[0], 3);
+		ThreadedKernel.scheduler.setPriority(waiters[0], priorityDefault);
+		Machine.interrupt().restore(oldInterrupStatus);
+		
+		lock.release();
+		for (int i = 0; i < 3; ++i)
+			waiters[i].join();
+		
+		for (int i = 0; i < 3; ++i)
+			Lib.assertTrue(order[i] == i, "waiter lost its turn");
     }
     private static final char dbgThread = 't';
     
@@ -295,6 +331,28 @@ public class PriorityScheduler extends Scheduler {
     	}
     }
     
+    private static class Waiter implements Runnable
+    {
+    	Waiter(Lock lock, int id, int[] order, int[] acquired)
+    	{
+    		this.lock = lock;
+    		this.id = id;
+    		this.order = order;
+    		this.acquired = acquired;
+    	}
+    	public void run()
+    	{
+    		lock.acquire();
+    		Lib.debug(dbgThread, "&&& W" + (id+1) + " has the lock");
+    		order[acquired[0]++] = id;
+    		lock.release();
+    	}
+    	private Lock lock;
+    	private int id;
+    	private int[] order;
+    	private int[] acquired;
+    }
+    
     private static class T3 implements Runnable
     {
     	T3(Semaphore sema4)
@@ -339,32 +397,19 @@ public class PriorityScheduler extends Scheduler {
 		//runningThread is the thread
 		//that is hold the current lock 
 		//since it has finished the nextThread will get the
-		//lock and will start to run
+		//lock and will start to run; it loses any priority
+		//that was donated to it through this queue
 		if(runningThread != null)
 		{
-			runningThread.listOfHPThreads.clear();
-			
-			if(runningThread.inheritedPriority)
-			{
-				
-				runningThread.setPriority(runningThread.oldPriority);
-				runningThread.inheritedPriority = false;
-			}
-			
-			runningThread = null;
+			runningThread.release(this);
 		}
 	    Lib.assertTrue(Machine.interrupt().disabled());
 	    
 	    ThreadState nThread = pickNextThread();
 	    if(nThread != null)
 	    {
-	    	Integer highP = pQueue.lastKey();
-	    	LinkedList<ThreadState> threads = pQueue.get(highP);
-	    	threads.remove(nThread);
-	    	if(threads.size() == 0)
-	    	{
-	    		pQueue.remove(highP);
-	    	}
+	    	remove(nThread, highestPriority());
+	    	nThread.waitingOn = null;
 	    	nThread.acquire(this);
 	    	return nThread.thread;
 	    }
@@ -380,37 +425,97 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    if(!pQueue.isEmpty())	    	
+	    if(nonEmpty != 0)
 	    {
-	    	
-	    	ThreadState retValue = null;
-	    	Integer highP = pQueue.lastKey();
-	    	LinkedList<ThreadState> threads = pQueue.get(highP);
-	    	
-	    	//there are multiple threads waiting for the given priority
-	    	if(threads.size() > 1)
-	    	{
-	    		long prevWaitTime = 0; 
-	    		for(int i = 0; i < threads.size() ; i++)
-	    		{
-	    			long currWaitTime = Machine.timer().getTime() - threads.get(i).insertTime;
-	    			if(currWaitTime > prevWaitTime)
-	    			{
-	    				prevWaitTime = currWaitTime;
-	    				retValue = threads.get(i);
-	    			}
-	    		}
-	    	}
-	    	else
-	    	{
-	    		//there is only one threads waiting for the given priority
-	    		retValue = threads.get(0);
-	    	}
-	        
-	        return retValue;
+	    	//each FIFO is in the order the threads started waiting, so
+	    	//the longest waiter at the highest priority is at its head
+	    	return first[highestPriority()];
 	    }
 	    return null;
 	}
+
+	/**
+	 * Add a thread that has just started waiting to the end of the FIFO
+	 * for the given priority.
+	 */
+	void add(ThreadState state, int priority) {
+	    link(state, priority, last[priority], null);
+	}
+
+	/**
+	 * Put a thread that was already waiting back in the FIFO for the
+	 * given priority, in its turn by <tt>arrival</tt>, so that a thread
+	 * whose priority changes keeps its place among the threads of its new
+	 * priority. This searches the FIFO, but only happens when a donation
+	 * changes.
+	 */
+	void requeue(ThreadState state, int priority) {
+	    ThreadState next = first[priority];
+	    while (next != null && next.arrival < state.arrival)
+		next = next.next;
+
+	    link(state, priority, (next == null) ? last[priority] : next.prev,
+		 next);
+	}
+
+	/**
+	 * Remove a thread from the FIFO for the given priority.
+	 */
+	void remove(ThreadState state, int priority) {
+	    if (state.prev == null)
+		first[priority] = state.next;
+	    else
+		state.prev.next = state.next;
+
+	    if (state.next == null)
+		last[priority] = state.prev;
+	    else
+		state.next.prev = state.prev;
+
+	    state.prev = state.next = null;
+
+	    if (first[priority] == null)
+		nonEmpty &= ~(1 << priority);
+	}
+
+	/**
+	 * Link a thread into the FIFO for the given priority, between
+	 * <tt>prev</tt> and <tt>next</tt>, either of which may be
+	 * <tt>null</tt> at the ends.
+	 */
+	private void link(ThreadState state, int priority, ThreadState prev,
+			  ThreadState next) {
+	    state.prev = prev;
+	    state.next = next;
+
+	    if (prev == null)
+		first[priority] = state;
+	    else
+		prev.next = state;
+
+	    if (next == null)
+		last[priority] = state;
+	    else
+		next.prev = state;
+
+	    nonEmpty |= 1 << priority;
+	}
+
+	/**
+	 * Return the priority this queue donates to its owner: that of the
+	 * highest-priority waiting thread, or -1 if nothing is waiting.
+	 */
+	int donation() {
+	    return (nonEmpty == 0) ? -1 : highestPriority();
+	}
+
+	/**
+	 * Return the highest priority with a waiting thread. There must be at
+	 * least one.
+	 */
+	private int highestPriority() {
+	    return 31 - Integer.numberOfLeadingZeros(nonEmpty);
+	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
@@ -424,9 +529,20 @@ public class PriorityScheduler extends Scheduler {
 	public boolean transferPriority;
 	
 	//Q5
-	//This list maintains the threads in the queue that are
-	//wait for the resource. 
-	TreeMap<Integer,LinkedList<ThreadState>> pQueue = new TreeMap<Integer,LinkedList<ThreadState>>();
+	//These lists maintain the threads in the queue that are
+	//waiting for the resource, one FIFO for each priority, linked
+	//through the threads' own states so that adding and removing
+	//allocate nothing. first[p] and last[p] are the ends of the FIFO
+	//for priority p. Bit p of nonEmpty is set when that FIFO has
+	//threads in it, so the highest waiting priority is found without
+	//a search.
+	ThreadState[] first =
+	    new ThreadState[priorityMaximum - priorityMinimum + 1];
+	ThreadState[] last =
+	    new ThreadState[priorityMaximum - priorityMinimum + 1];
+	int nonEmpty = 0;
+	/** The arrival number to give the next thread that waits. */
+	long arrivals = 0;
 	public ThreadState runningThread; 
     }
 
@@ -471,18 +587,37 @@ public class PriorityScheduler extends Scheduler {
 		//thread. If there are higher priority threads
 	    //that are waiting the priority inversion takes place
 		//the current low priority threads get the priority
-		//of the highest priority among the waiting threads. 
-		//Please note keys in TreeMap is already sorted
-		if(listOfHPThreads.size() > 0)
-		{
-			//below call to lastKey provides the optimization we 
-			//are looking for since the keys in treemap is already sorted. 
-			Integer highP = listOfHPThreads.lastKey();						
-			oldPriority = priority;
-			priority = highP;
-			inheritedPriority = true;
-		}
-	    return priority;
+		//of the highest priority among the waiting threads.
+		//The value is kept up to date by updateEffectivePriority(),
+		//so nothing is computed here.
+	    return effectivePriority;
+	}
+
+	/**
+	 * Recompute the effective priority from the priority of this thread
+	 * and the donations of the queues it owns. If it changed, move the
+	 * thread to its new place in the queue it is waiting on, and pass the
+	 * change on to the owner of that queue, and so on down the chain.
+	 */
+	void updateEffectivePriority() {
+	    int newPriority = priority;
+	    for (int i=0; i<owned.size(); i++)
+		newPriority = Math.max(newPriority, owned.get(i).donation());
+
+	    if (newPriority == effectivePriority)
+		return;
+
+	    if (waitingOn == null) {
+		effectivePriority = newPriority;
+		return;
+	    }
+
+	    waitingOn.remove(this, effectivePriority);
+	    effectivePriority = newPriority;
+	    waitingOn.requeue(this, effectivePriority);
+
+	    if (waitingOn.transferPriority && waitingOn.runningThread != null)
+		waitingOn.runningThread.updateEffectivePriority();
 	}
 
 	/**
@@ -507,7 +642,7 @@ public class PriorityScheduler extends Scheduler {
 	    	this.priority = priority;
 	    }
 	    
-	    
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -523,34 +658,17 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-		Integer currPriority = new Integer(this.getEffectivePriority());
-		LinkedList<ThreadState> waitingTh = waitQueue.pQueue.get(currPriority);
-		if(waitingTh == null)
-		{
-			waitingTh = new LinkedList<ThreadState>();
-			waitQueue.pQueue.put(currPriority,waitingTh);
-		}
-		this.insertTime = Machine.timer().getTime();
-	    waitingTh.add(this);
+		Lib.assertTrue(waitingOn == null);
+		waitingOn = waitQueue;
+		arrival = waitQueue.arrivals++;
+	    waitQueue.add(this, effectivePriority);
 	    
-	    //we also need to this thread to the list of higher 
-	    //priority threads only if the current thread 
-	    //priority is greater than the priority of the
-	    //running thread. 
-	    if(waitQueue.transferPriority)
+	    //we also need to donate this thread's priority to the
+	    //thread holding the resource, if it is higher; the
+	    //owner passes it on if it is waiting itself
+	    if(waitQueue.transferPriority && waitQueue.runningThread != null)
 	    {
-	    	if( this.priority > waitQueue.runningThread.getPriority())
-	    	{
-	    		
-	    		LinkedList<ThreadState> threads = waitQueue.runningThread.listOfHPThreads.get(currPriority);
-	    		if( threads == null)
-	    		{
-	    			threads = new LinkedList<ThreadState>();	
-	    			waitQueue.runningThread.listOfHPThreads.put(currPriority,threads);
-	    		}	    		
-	    		
-	    		threads.add(this);
-	    	}
+	    	waitQueue.runningThread.updateEffectivePriority();
 	    }
 	}
 
@@ -568,17 +686,38 @@ public class PriorityScheduler extends Scheduler {
 	    if(waitQueue.transferPriority)
 	    {
 	    	waitQueue.runningThread = this;
+	    	owned.add(waitQueue);
+	    	updateEffectivePriority();
 	    }
-	}	
+	}
+
+	/**
+	 * Called when the associated thread gives up the resource guarded by
+	 * <tt>waitQueue</tt>, which it owns, along with any priority donated
+	 * through it.
+	 */
+	void release(PriorityQueue waitQueue) {
+	    Lib.assertTrue(waitQueue.runningThread == this);
+
+	    waitQueue.runningThread = null;
+	    owned.remove(waitQueue);
+	    updateEffectivePriority();
+	}
 
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
-	public int oldPriority;
-	public boolean inheritedPriority = true;
-	public long insertTime; 
-	public TreeMap<Integer,LinkedList<ThreadState>> listOfHPThreads = new TreeMap<Integer,LinkedList<ThreadState>>();
+	/** The priority of the associated thread, including donations. */
+	protected int effectivePriority;
+	/** The queue the associated thread is waiting on, if any. */
+	PriorityQueue waitingOn = null;
+	/** When the associated thread started waiting on <tt>waitingOn</tt>. */
+	long arrival;
+	/** The threads before and after this one in its FIFO. */
+	ThreadState prev = null, next = null;
+	/** The priority-transferring queues the associated thread owns. */
+	ArrayList<PriorityQueue> owned = new ArrayList<PriorityQueue>();
     }
     
         	
@@ -0,0 +1,335 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashSet;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that may be held either by any number of
+ * <i>readers</i> at once, or by a single <i>writer</i>:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: atomically wait until no writer holds or is
+ * waiting for the lock, and then become one of its readers.
+ * <li><tt>acquireWrite()</tt>: atomically wait until no other thread holds
+ * the lock, and then become its writer.
+ * <li><tt>releaseRead()</tt> and <tt>releaseWrite()</tt>: give up the lock,
+ * admitting waiting threads if possible.
+ * </ul>
+ *
+ * <p>
+ * Writers are preferred: once a writer is waiting, threads that ask to read
+ * wait behind it, so that a steady stream of readers cannot starve it.
+ * Waiting threads are admitted in the order given by a thread queue of the
+ * current scheduler. Whenever it comes to a reader, that reader and the
+ * readers after it are admitted together, up to the next writer.
+ *
+ * <p>
+ * The wait queue transfers priority. The thread that owns it is the writer
+ * holding the lock, or the one that is waiting for the last readers to leave,
+ * so threads waiting for the lock donate their priority to that writer. The
+ * readers holding the lock receive no donation, since there may be many of
+ * them.
+ *
+ * <p>
+ * Like <tt>Lock</tt>, a <tt>ReadWriteLock</tt> is not reentrant, and a reader
+ * cannot become a writer without first releasing the lock.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new reader-writer lock. The lock will initially be free.
+     */
+    public ReadWriteLock() {
+    }
+
+    /**
+     * Atomically acquire this lock for reading. The current thread must not
+     * already hold this lock for writing.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer == null && numWaiting == 0) {
+	    numReaders++;
+	}
+	else {
+	    numWaiting++;
+	    waitQueue.waitForAccess(thread);
+	    KThread.sleep();
+
+	    // the thread that admitted us counted us as a reader; admit the
+	    // readers queued behind us as well
+	    admitNext();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * reading. The last reader to leave wakes up the writer waiting for it.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(numReaders > 0);
+
+	if (--numReaders == 0 && writer != null)
+	    writer.ready();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock for writing. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer == null && numWaiting == 0) {
+	    waitQueue.acquire(thread);
+	    writer = thread;
+
+	    // keep new readers out, and wait for the current ones to leave
+	    if (numReaders > 0)
+		KThread.sleep();
+	}
+	else {
+	    waitingWriters.add(thread);
+	    numWaiting++;
+	    waitQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(writer == thread && numReaders == 0);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * writing, admitting either the next writer or the next readers.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writer = null;
+	admitNext();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread() && numReaders == 0);
+    }
+
+    /**
+     * Admit the next waiting thread, if no writer holds the lock. A writer
+     * takes over the wait queue, and is readied once there are no readers. A
+     * reader is counted and readied, and admits the thread after it when it
+     * runs.
+     */
+    private void admitNext() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (writer != null)
+	    return;
+
+	KThread thread = waitQueue.nextThread();
+	if (thread == null)
+	    return;
+
+	numWaiting--;
+
+	if (waitingWriters.remove(thread)) {
+	    writer = thread;
+	    if (numReaders == 0)
+		thread.ready();
+	}
+	else {
+	    numReaders++;
+	    thread.ready();
+	}
+    }
+
+    /**
+     * A thread that takes a <tt>ReadWriteLock</tt>, notes in a shared log that
+     * it has it, yields a few times while holding it, and lets it go.
+     */
+    private static class Holder implements Runnable {
+	Holder(ReadWriteLock lock, String name, boolean write,
+	       StringBuffer log, int[] inside) {
+	    this.lock = lock;
+	    this.name = name;
+	    this.write = write;
+	    this.log = log;
+	    this.inside = inside;
+	}
+
+	public void run() {
+	    if (write)
+		lock.acquireWrite();
+	    else
+		lock.acquireRead();
+
+	    Lib.debug(dbgThread, "### " + name + " has the lock");
+	    log.append(name).append(' ');
+
+	    if (write) {
+		Lib.assertTrue(inside[0] == 0, "writer shares the lock");
+		effective = effectivePriority();
+	    }
+	    else {
+		inside[0]++;
+		inside[1] = Math.max(inside[1], inside[0]);
+	    }
+
+	    for (int i=0; i<3; i++)
+		KThread.yield();
+
+	    if (write) {
+		lock.releaseWrite();
+		released = effectivePriority();
+	    }
+	    else {
+		inside[0]--;
+		lock.releaseRead();
+	    }
+	}
+
+	private static int effectivePriority() {
+	    boolean intStatus = Machine.interrupt().disable();
+	    int priority = ThreadedKernel.scheduler.getEffectivePriority();
+	    Machine.interrupt().restore(intStatus);
+	    return priority;
+	}
+
+	private ReadWriteLock lock;
+	private String name;
+	private boolean write;
+	private StringBuffer log;
+	/** Readers holding the lock now, and the most there have been. */
+	private int[] inside;
+	/** The writer's effective priority after acquiring and releasing. */
+	int effective = -1, released = -1;
+    }
+
+    private static KThread fork(Holder holder, String name) {
+	KThread thread = new KThread(holder).setName(name);
+	thread.fork();
+	return thread;
+    }
+
+    /**
+     * Tests whether this module is working.
+     */
+    public static void selfTest() {
+	// Test 1 - while this thread reads, W asks to write, then R1 and R2
+	// to read, W2 to write and R3 to read. Each is forked only once the
+	// one before it is waiting, since not every scheduler runs threads in
+	// the order they are forked. W must go first even though only readers
+	// hold the lock. Where the wait queue is FIFO, R1 and R2 must then
+	// hold it together, and R3 must wait behind W2
+	ReadWriteLock lock = new ReadWriteLock();
+	StringBuffer log = new StringBuffer();
+	int[] inside = new int[2];
+	String[] names = { "W", "R1", "R2", "W2", "R3" };
+	KThread[] threads = new KThread[names.length];
+
+	lock.acquireRead();
+	for (int i=0; i<names.length; i++) {
+	    threads[i] = fork(new Holder(lock, names[i],
+					 names[i].startsWith("W"), log, inside),
+			      names[i]);
+	    while (lock.writer == null || lock.numWaiting < i)
+		KThread.yield();
+	}
+	Lib.assertTrue(lock.writer == threads[0] && log.length() == 0,
+		       "reader let in ahead of a writer");
+
+	lock.releaseRead();
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	Lib.debug(dbgThread, "### order: " + log);
+	Lib.assertTrue(log.toString().startsWith("W "),
+		       "writer not admitted first");
+	if (ThreadedKernel.scheduler.getClass() == RoundRobinScheduler.class ||
+	    ThreadedKernel.scheduler.getClass() == PriorityScheduler.class) {
+	    Lib.assertTrue(log.toString().equals("W R1 R2 W2 R3 "),
+			   "threads admitted out of order");
+	    Lib.assertTrue(inside[1] == 2, "readers not admitted together");
+	}
+
+	// Test 2 - donation. Only the plain priority scheduler keeps to
+	// the priorities that are set here
+	if (ThreadedKernel.scheduler.getClass() != PriorityScheduler.class)
+	    return;
+
+	// W, at the default priority, waits for this thread to stop
+	// reading; H, at a higher priority, waits behind W to read. H must
+	// donate its priority to W, and W must lose it on releasing
+	lock = new ReadWriteLock();
+	log = new StringBuffer();
+	inside = new int[2];
+
+	lock.acquireRead();
+	Holder writer = new Holder(lock, "W", true, log, inside);
+	KThread w = fork(writer, "W");
+	KThread.yield();
+
+	KThread h = new KThread(new Holder(lock, "H", false, log, inside))
+	    .setName("H");
+	boolean intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.setPriority(h, 3);
+	Machine.interrupt().restore(intStatus);
+	h.fork();
+	KThread.yield();
+
+	intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(w) == 3,
+		       "waiting reader did not donate to the writer");
+	Machine.interrupt().restore(intStatus);
+
+	lock.releaseRead();
+	w.join();
+	h.join();
+
+	Lib.assertTrue(log.toString().equals("W H "),
+		       "threads admitted out of order");
+	Lib.assertTrue(writer.effective == 3,
+		       "writer lost the donation while holding the lock");
+	Lib.assertTrue(writer.released == PriorityScheduler.priorityDefault,
+		       "writer kept the donation after releasing");
+    }
+
+    private static final char dbgThread = 't';
+
+    /**
+     * The writer that holds this lock, or that is waiting for the readers
+     * that hold it to leave; <tt>null</tt> if there is none.
+     */
+    private KThread writer = null;
+    /** The number of readers holding this lock. */
+    private int numReaders = 0;
+    /** The number of threads in the wait queue. */
+    private int numWaiting = 0;
+    /** The threads in the wait queue that want to write. */
+    private HashSet<KThread> waitingWriters = new HashSet<KThread>();
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+}
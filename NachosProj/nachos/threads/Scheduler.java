@@ -154,4 +154,62 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Called by the alarm on each timer interrupt, just before the current
+     * thread is made to yield. A scheduler can use this to charge the
+     * current thread for the time it has run. The default implementation
+     * does nothing.
+     *
+     * <p>
+     * Interrupts are disabled when this is called.
+     */
+    public void timerTick() {
+    }
+
+    /**
+     * Called by a device driver, such as <tt>SynchConsole</tt> or
+     * <tt>PostOffice</tt>, just before the current thread blocks waiting for
+     * its device. Threads that wait for devices are likely to be
+     * interactive, so a scheduler may favor them. The default implementation
+     * does nothing.
+     */
+    public void waitingForIO() {
+    }
+
+    /**
+     * Called by <tt>KThread</tt> just before it switches from one thread to
+     * another. A scheduler can use this to account for the time each thread
+     * spends running and waiting. The default implementation does nothing.
+     *
+     * <p>
+     * Interrupts are disabled when this is called.
+     *
+     * @param	previous	the thread that is giving up the CPU, which
+     *				may be finishing.
+     * @param	next		the thread that is about to run.
+     */
+    public void threadSwitched(KThread previous, KThread next) {
+    }
+
+    /**
+     * Called by <tt>KThread</tt> when the current thread is finishing, just
+     * before it gives up the CPU for the last time. A scheduler can use this
+     * to let go of the state it keeps for the thread. The default
+     * implementation does nothing.
+     *
+     * <p>
+     * Interrupts are disabled when this is called.
+     *
+     * @param	thread	the thread that is finishing.
+     */
+    public void threadFinished(KThread thread) {
+    }
+
+    /**
+     * Print any statistics the scheduler has gathered. Called when the kernel
+     * terminates. The default implementation prints nothing.
+     */
+    public void printStatistics() {
+    }
 }
@@ -28,7 +28,20 @@ public class Semaphore {
      * @param	initialValue	the initial value of this semaphore.
      */
     public Semaphore(int initialValue) {
+	this(initialValue, null);
+    }
+
+    /**
+     * Allocate a new semaphore with a name, under which it is reported by the
+     * <tt>LockProfiler</tt>.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	name		the name of the semaphore, or <tt>null</tt> to
+     *				name it after the code that created it.
+     */
+    public Semaphore(int initialValue, String name) {
 	value = initialValue;
+	profile = LockProfiler.register("Semaphore", name);
     }
 
     /**
@@ -38,11 +51,19 @@ public class Semaphore {
 	boolean intStatus = Machine.interrupt().disable();
 
 	if (value == 0) {
+	    long startTime = (profile != null) ? Machine.timer().getTime() : 0;
+
 	    waitQueue.waitForAccess(KThread.currentThread());
 	    KThread.sleep();
+
+	    if (profile != null)
+		profile.acquired(true, Machine.timer().getTime() - startTime);
 	}
 	else {
 	    value--;
+
+	    if (profile != null)
+		profile.acquired(false, 0);
 	}
 
 	Machine.interrupt().restore(intStatus);
@@ -99,6 +120,8 @@ public class Semaphore {
     }
 
     private int value;
+    /** Where this semaphore's use is recorded, or <tt>null</tt> if it is not. */
+    private LockProfiler.Profile profile;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
 }
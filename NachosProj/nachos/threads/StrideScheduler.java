@@ -0,0 +1,308 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that gives threads deterministic proportional shares, using
+ * stride scheduling.
+ *
+ * <p>
+ * Threads hold tickets, as with a lottery scheduler, and tickets are
+ * transferred through locks in the same way: a thread waiting on a queue
+ * that transfers priority adds its tickets to those of the queue's owner.
+ * Instead of holding a lottery, a stride scheduler gives each thread a
+ * <i>stride</i> inversely proportional to its tickets, and a <i>pass</i>.
+ * The thread dequeued is always the one with the lowest pass, and its pass is
+ * advanced by its stride each time it is switched in to run. Over any
+ * interval, each thread therefore runs in proportion to its tickets, give
+ * or take one turn, instead of only on average.
+ *
+ * <p>
+ * The pass measures CPU time only. Queues other than the ready queue, such
+ * as those of locks and joins, order their waiters by the same pass, but
+ * handing a thread a lock does not charge it for a turn.
+ *
+ * <p>
+ * Each queue keeps its waiting threads in a binary heap ordered by pass, and
+ * among equal passes by the order in which they started waiting, so
+ * dequeueing a thread takes <i>O(log n)</i> time.
+ */
+public class StrideScheduler extends PriorityScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new StrideThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    protected int getPriorityDefault() {
+	return LotteryScheduler.lotPriorityDefault;
+    }
+
+    protected int getPriorityMin() {
+	return LotteryScheduler.lotPriorityMinimum;
+    }
+
+    protected int getPriorityMax() {
+	return LotteryScheduler.lotPriorityMaximum;
+    }
+
+    /**
+     * The stride of a thread with one ticket. Strides are this divided by
+     * the number of tickets, and no less than 1.
+     */
+    public static final long stride1 = 1L << 30;
+
+    /**
+     * Charge the thread being switched in for its turn.
+     */
+    public void threadSwitched(KThread previous, KThread next) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	StrideThreadState state = (StrideThreadState) getThreadState(next);
+	virtualTime = Math.max(virtualTime, state.pass);
+	state.pass += state.stride();
+    }
+
+    /** The pass of the latest thread to be switched in. */
+    private long virtualTime = 0;
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the thread with the lowest pass.
+     */
+    protected class StrideQueue extends PriorityQueue {
+	StrideQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // the old owner gives up the resource, and the tickets donated
+	    // through it
+	    if (runningThread != null)
+		runningThread.release(this);
+
+	    StrideThreadState state = (StrideThreadState) pickNextThread();
+	    if (state == null)
+		return null;
+
+	    leave(state);
+
+	    state.acquire(this);
+	    return state.thread;
+	}
+
+	protected ThreadState pickNextThread() {
+	    return (size == 0) ? null : heap[0];
+	}
+
+	/**
+	 * Add a waiting thread to the heap. A thread that has not run for a
+	 * while starts at the current virtual time, so that it cannot claim
+	 * the turns it missed.
+	 */
+	void enter(StrideThreadState state) {
+	    state.pass = Math.max(state.pass, virtualTime);
+	    state.arrival = numArrivals++;
+
+	    if (size == heap.length) {
+		StrideThreadState[] newHeap =
+		    new StrideThreadState[Math.max(4, size*2)];
+		System.arraycopy(heap, 0, newHeap, 0, size);
+		heap = newHeap;
+	    }
+
+	    heap[size] = state;
+	    state.heapIndex = size;
+	    size++;
+	    siftUp(state.heapIndex);
+
+	    if (transferPriority)
+		donate(state.priority);
+	}
+
+	/**
+	 * Remove a waiting thread from the heap.
+	 */
+	void leave(StrideThreadState state) {
+	    int index = state.heapIndex;
+	    size--;
+	    if (index != size) {
+		// fill the hole with the last thread, and move it into place
+		StrideThreadState last = heap[size];
+		heap[index] = last;
+		last.heapIndex = index;
+		siftDown(index);
+		siftUp(last.heapIndex);
+	    }
+	    heap[size] = null;
+	    state.heapIndex = -1;
+
+	    state.waitingOn = null;
+	    if (transferPriority)
+		donate(-state.priority);
+	}
+
+	/**
+	 * Rescale the rest of a waiting thread's pass after its tickets
+	 * changed, so that it waits in proportion to its new stride.
+	 */
+	void strideChanged(StrideThreadState state, long oldStride) {
+	    long remaining = state.pass - virtualTime;
+	    if (remaining <= 0)
+		return;
+
+	    // split the scaling so that it cannot overflow
+	    long stride = state.stride();
+	    state.pass = virtualTime + remaining/oldStride*stride +
+		(remaining%oldStride)*stride/oldStride;
+	    siftDown(state.heapIndex);
+	    siftUp(state.heapIndex);
+	}
+
+	/**
+	 * Change the number of tickets the waiting threads donate to the
+	 * owner of this queue.
+	 */
+	void donate(long delta) {
+	    donatedTickets += delta;
+	    if (runningThread != null)
+		runningThread.updateEffectivePriority();
+	}
+
+	private boolean before(StrideThreadState a, StrideThreadState b) {
+	    if (a.pass != b.pass)
+		return a.pass < b.pass;
+	    else
+		return a.arrival < b.arrival;
+	}
+
+	private void siftUp(int index) {
+	    StrideThreadState state = heap[index];
+	    while (index > 0) {
+		int parent = (index-1)/2;
+		if (!before(state, heap[parent]))
+		    break;
+		heap[index] = heap[parent];
+		heap[index].heapIndex = index;
+		index = parent;
+	    }
+	    heap[index] = state;
+	    state.heapIndex = index;
+	}
+
+	private void siftDown(int index) {
+	    StrideThreadState state = heap[index];
+	    while (true) {
+		int child = 2*index + 1;
+		if (child >= size)
+		    break;
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+		if (!before(heap[child], state))
+		    break;
+		heap[index] = heap[child];
+		heap[index].heapIndex = index;
+		index = child;
+	    }
+	    heap[index] = state;
+	    state.heapIndex = index;
+	}
+
+	private StrideThreadState[] heap = new StrideThreadState[0];
+	private int size = 0;
+	private long numArrivals = 0;
+	/**
+	 * The sum of the priorities of the waiting threads, which is donated
+	 * to the owner when this queue transfers priority.
+	 */
+	long donatedTickets = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its tickets, including donations,
+     * and its pass.
+     */
+    protected class StrideThreadState extends ThreadState {
+	public StrideThreadState(KThread thread) {
+	    super(thread);
+	}
+
+	public int getEffectivePriority() {
+	    return (int) Math.min(tickets, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Return the stride of the associated thread, from its tickets.
+	 */
+	long stride() {
+	    return Math.max(1, stride1 / tickets);
+	}
+
+	/**
+	 * Recompute the tickets of this thread: its own, and those donated
+	 * through the queues it owns. If it is waiting, its place in the heap
+	 * is updated.
+	 */
+	void updateEffectivePriority() {
+	    long newTickets = priority;
+	    for (int i=0; i<owned.size(); i++)
+		newTickets += ((StrideQueue) owned.get(i)).donatedTickets;
+
+	    if (newTickets == tickets)
+		return;
+
+	    long oldStride = (tickets == 0) ? 0 : stride();
+	    tickets = newTickets;
+
+	    if (waitingOn != null)
+		((StrideQueue) waitingOn).strideChanged(this, oldStride);
+	}
+
+	public void setPriority(int priority) {
+	    int oldPriority = this.priority;
+	    super.setPriority(priority);
+
+	    // a waiting thread donates its tickets, so the owner of the queue
+	    // it is waiting on has to be told of the change
+	    if (waitingOn != null && waitingOn.transferPriority)
+		((StrideQueue) waitingOn).donate(this.priority - oldPriority);
+	}
+
+	public void waitForAccess(PriorityQueue waitQueue) {
+	    Lib.assertTrue(waitingOn == null);
+	    waitingOn = waitQueue;
+	    ((StrideQueue) waitQueue).enter(this);
+	}
+
+	// these are set by setPriority() from the ThreadState constructor,
+	// so they must not have initializers, which would run afterwards
+	/** The tickets of this thread, including donations. */
+	long tickets;
+	/** The pass of this thread. */
+	long pass;
+	/** The order in which this thread started waiting. */
+	long arrival;
+	/** The index of this thread in the heap it is waiting in. */
+	int heapIndex;
+    }
+}
@@ -0,0 +1,118 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>StripedLock</tt> guards a table with several reader-writer locks, or
+ * <i>stripes</i>, instead of one. Each key of the table maps to one stripe,
+ * so threads working on keys in different stripes never wait for each other,
+ * while a thread can still lock every stripe to work on the whole table.
+ *
+ * <p>
+ * A thread should hold at most one stripe at a time, except through
+ * <tt>acquireAllWrite()</tt>, which takes the stripes in order so that it
+ * cannot deadlock with another thread doing the same.
+ */
+public class StripedLock {
+    /**
+     * Allocate a new striped lock, with a number of stripes given by
+     * <tt>StripedLock.stripes</tt>, or 16 if that is not set.
+     */
+    public StripedLock() {
+	this(Config.getInteger("StripedLock.stripes", 16));
+    }
+
+    /**
+     * Allocate a new striped lock.
+     *
+     * @param	numStripes	the number of stripes, which must be a power of
+     *				2.
+     */
+    public StripedLock(int numStripes) {
+	Lib.assertTrue(numStripes > 0 && (numStripes & (numStripes-1)) == 0);
+
+	stripes = new ReadWriteLock[numStripes];
+	for (int i=0; i<numStripes; i++)
+	    stripes[i] = new ReadWriteLock();
+    }
+
+    /**
+     * Return the stripe that guards the specified key.
+     *
+     * @param	key	the key to look up.
+     * @return	the reader-writer lock for that key.
+     */
+    public ReadWriteLock stripe(int key) {
+	// spread the high bits of the key into the low ones, so that keys
+	// that differ only in their high bits fall in different stripes
+	int hash = key ^ (key >>> 16);
+	hash ^= (hash >>> 8) ^ (hash >>> 4);
+
+	return stripes[hash & (stripes.length-1)];
+    }
+
+    /**
+     * Acquire the stripe for the specified key for reading.
+     *
+     * @param	key	the key to look up.
+     */
+    public void acquireRead(int key) {
+	stripe(key).acquireRead();
+    }
+
+    /**
+     * Release the stripe for the specified key, which the current thread
+     * holds for reading.
+     *
+     * @param	key	the key that was looked up.
+     */
+    public void releaseRead(int key) {
+	stripe(key).releaseRead();
+    }
+
+    /**
+     * Acquire the stripe for the specified key for writing.
+     *
+     * @param	key	the key to update.
+     */
+    public void acquireWrite(int key) {
+	stripe(key).acquireWrite();
+    }
+
+    /**
+     * Release the stripe for the specified key, which the current thread
+     * holds for writing.
+     *
+     * @param	key	the key that was updated.
+     */
+    public void releaseWrite(int key) {
+	stripe(key).releaseWrite();
+    }
+
+    /**
+     * Acquire every stripe for writing, in order.
+     */
+    public void acquireAllWrite() {
+	for (int i=0; i<stripes.length; i++)
+	    stripes[i].acquireWrite();
+    }
+
+    /**
+     * Release every stripe, which the current thread holds for writing.
+     */
+    public void releaseAllWrite() {
+	for (int i=stripes.length-1; i>=0; i--)
+	    stripes[i].releaseWrite();
+    }
+
+    /**
+     * Return the number of stripes.
+     *
+     * @return	the number of stripes.
+     */
+    public int getNumStripes() {
+	return stripes.length;
+    }
+
+    private ReadWriteLock[] stripes;
+}
@@ -65,6 +65,8 @@ public class ThreadedKernel extends Kernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	scheduler.printStatistics();
+	LockProfiler.print();
 	Machine.halt();
     }
 
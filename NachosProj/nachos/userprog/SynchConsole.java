@@ -42,6 +42,8 @@ public class SynchConsole {
 	readLock.acquire();
 
 	if (block || charAvailable) {
+	    if (!charAvailable)
+		ThreadedKernel.scheduler.waitingForIO();
 	    charAvailable = false;
 	    readWait.P();
 
@@ -79,6 +81,7 @@ public class SynchConsole {
     public void writeByte(int value) {
 	writeLock.acquire();
 	console.writeByte(value);
+	ThreadedKernel.scheduler.waitingForIO();
 	writeWait.P();
 	writeLock.release();
     }
@@ -192,7 +192,7 @@ public class UserProcess {
     	
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
+	int memorySize = Machine.processor().getMemorySize();
 	
 	// performs virtual addresses to physical addresses mapping
 	if (vaddr < 0 || vaddr >= virtualMemory.size() * pageSize)
@@ -202,9 +202,9 @@ public class UserProcess {
 	int realMemOffset = vaddr % pageSize;
 	int realPageNumber = pageTable[virtualPageNumber].ppn;
 	
-	int amount = Math.min(length, memory.length-vaddr);
+	int amount = Math.min(length, memorySize-vaddr);
 
-	if (realPageNumber * pageSize + realMemOffset + amount > memory.length )
+	if (realPageNumber * pageSize + realMemOffset + amount > memorySize )
 	{
 		return 0;
 	}
@@ -214,7 +214,7 @@ public class UserProcess {
 	while (realMemOffset + amount > pageSize) 
 	{
 		int amountToWrite = pageSize - realMemOffset;
-		System.arraycopy(memory, (realPageNumber*pageSize) + realMemOffset, data, newOffset, amountToWrite);
+		Machine.processor().readPhysicalMemory((realPageNumber*pageSize) + realMemOffset, data, newOffset, amountToWrite);
 		amount = amount - amountToWrite;
 		newOffset = newOffset + amountToWrite;
 		
@@ -225,8 +225,7 @@ public class UserProcess {
 	
 	//Lib.debug(dbgProcess, "copying " + amount + " bytes from memory position " + realPageNumber + realMemOffset + " to destination offset " + newOffset);
 	
-	//arraycopy parameters: (src, src_position, destination, destination_position, length)
-	System.arraycopy(memory, (realPageNumber*pageSize) + realMemOffset, data, newOffset, amount);
+	Machine.processor().readPhysicalMemory((realPageNumber*pageSize) + realMemOffset, data, newOffset, amount);
 
 	return amount;
     }
@@ -265,7 +264,7 @@ public class UserProcess {
     	
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
+	int memorySize = Machine.processor().getMemorySize();
 	// performs virtual addresses to physical addresses mapping
 	if (vaddr < 0 || vaddr >= virtualMemory.size() * pageSize)
 	    return 0;
@@ -273,9 +272,9 @@ public class UserProcess {
 	int realMemOffset = vaddr % pageSize;
 	int realPageNumber = pageTable[virtualPageNumber].ppn;
 	
-	int amount = Math.min(length, memory.length-vaddr);
+	int amount = Math.min(length, memorySize-vaddr);
 
-	if (realPageNumber * pageSize + realMemOffset + amount > memory.length )
+	if (realPageNumber * pageSize + realMemOffset + amount > memorySize )
 	{
 		return 0;
 	}
@@ -286,7 +285,7 @@ public class UserProcess {
 	while (realMemOffset + amount > pageSize) 
 	{
 		int amountToWrite = pageSize - realMemOffset;
-		System.arraycopy(data, newOffset, memory, (realPageNumber*pageSize) + realMemOffset, amount);
+		Machine.processor().writePhysicalMemory((realPageNumber*pageSize) + realMemOffset, data, newOffset, amountToWrite);
 		amount = amount - amountToWrite;
 		newOffset = newOffset + amountToWrite;
 		
@@ -296,7 +295,7 @@ public class UserProcess {
 	}
 
 	//write the remainder on to the last page
-	System.arraycopy(data, newOffset, memory, (realPageNumber*pageSize) + realMemOffset, amount);
+	Machine.processor().writePhysicalMemory((realPageNumber*pageSize) + realMemOffset, data, newOffset, amount);
 
 	return amount;
     }
@@ -460,9 +459,11 @@ public class UserProcess {
      */
     private int handleHalt() {
     
-	Machine.halt();
+	// terminate through the kernel, so that it can report and clean up
+	// as it does when the last process exits
+	UserKernel.kernel.terminate();
 	
-	Lib.assertNotReached("Machine.halt() did not halt machine!");
+	Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 	return 0;
     }
 
@@ -517,6 +518,9 @@ public class UserProcess {
 		}
     }
     
+    /**
+     * Returns the lowest free file descriptor, or -1 if there is none.
+     */
     protected int getFirstAvailableFd ()
 	{
 		// Find the first open slot
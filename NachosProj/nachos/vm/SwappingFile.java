@@ -30,7 +30,7 @@ public class SwappingFile {
 		}
 		int pos = idx * Machine.processor().pageSize;
 		// read a page from the swap file
-		swappingFile.read(pos, Machine.processor().getMemory(), Processor.makeAddress(ppn, 0), Machine.processor().pageSize);
+		Machine.processor().loadPhysicalMemory(swappingFile, pos, Processor.makeAddress(ppn, 0), Processor.pageSize);
 		// set the translation entry with the new info
 		TranslationEntry retval = entries.get(idx);
 		retval.ppn = ppn;
@@ -69,7 +69,7 @@ public class SwappingFile {
 		entries.add(entry);
 		// write the page in our vector's i-th position
 		int pos = keys.indexOf(key) * Machine.processor().pageSize;
-		swappingFile.write(pos, Machine.processor().getMemory(), Processor.makeAddress(entry.ppn, 0), Machine.processor().pageSize );
+		Machine.processor().storePhysicalMemory(swappingFile, pos, Processor.makeAddress(entry.ppn, 0), Processor.pageSize);
 	}
 	
 	// we maintain 2 vectors, a vector of keys, where a key is a [ process-id, vpn] pair
@@ -361,13 +361,7 @@ public class VMKernel extends UserKernel {
 				else
 				{
 					// clear all the memory
-					byte[] allMem = Machine.processor().getMemory();
-					for(int i = Processor.makeAddress(toBeSwapped.ppn, 0); 
-						i < (Processor.makeAddress(toBeSwapped.ppn, 0) + Processor.pageSize);
-						++i)
-					{
-						allMem[i] = 0;
-					}
+					Machine.processor().zeroPhysicalMemory(Processor.makeAddress(toBeSwapped.ppn, 0), Processor.pageSize);
 				}
 				
 			}